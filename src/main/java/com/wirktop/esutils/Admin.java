@@ -1,7 +1,10 @@
 package com.wirktop.esutils;
 
-import com.wirktop.esutils.search.Scroll;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
 import org.apache.commons.io.IOUtils;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.indices.alias.Alias;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesResponse;
 import org.elasticsearch.action.admin.indices.alias.exists.AliasesExistResponse;
@@ -12,21 +15,36 @@ import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeResponse;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
 import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.rollover.RolloverRequestBuilder;
+import org.elasticsearch.action.admin.indices.rollover.RolloverResponse;
 import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.shrink.ResizeResponse;
+import org.elasticsearch.action.admin.indices.shrink.ResizeType;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
 import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateAction;
 import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateRequest;
 import org.elasticsearch.action.admin.indices.template.put.PutIndexTemplateResponse;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.metadata.AliasMetaData;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.regex.Regex;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.SegmentsStats;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +52,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Cosmin Marginean
@@ -42,10 +71,22 @@ import java.util.List;
 public class Admin {
 
     public static final String INDEX_NUMBER_OF_SHARDS = "index.number_of_shards";
+    public static final String INDEX_NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    public static final String INDEX_REFRESH_INTERVAL = "index.refresh_interval";
+    public static final String INDEX_TRANSLOG_DURABILITY = "index.translog.durability";
+    public static final String INDEX_NUMBER_OF_ROUTING_SHARDS = "index.number_of_routing_shards";
+    public static final String INDEX_BLOCKS_WRITE = "index.blocks.write";
+    public static final String INDEX_ROUTING_REQUIRE_NAME = "index.routing.allocation.require._name";
+    public static final int DEFAULT_REPLICAS = 1;
+    public static final TimeValue DEFAULT_HEALTH_TIMEOUT = TimeValue.timeValueMinutes(10);
     public static final int DATA_COPY_BATCH_SIZE = 100;
+    private static final TimeValue FORCE_MERGE_POLL_INTERVAL = TimeValue.timeValueSeconds(10);
     private static final Logger log = LoggerFactory.getLogger(Admin.class);
     private static final String ANYTYPE = "ANYTYPE";
     private ElasticClient esClient;
+    private TimeValue metadataCacheTtl;
+    private volatile Metadata metadata;
+    private final AtomicLong metadataGeneration = new AtomicLong();
 
     public Admin(ElasticClient esClient) {
         this.esClient = esClient;
@@ -82,12 +123,67 @@ public class Admin {
     }
 
     public void createIndex(String index, int shards) {
+        createIndex(index, shardSettings(shards).build());
+    }
+
+    /**
+     * Creates an index set up for a faster initial load: no refreshes, no replicas and asynchronous translog
+     * durability. Once the data is loaded, {@link #finishBulkLoad(String, int)} brings it back to normal.
+     */
+    public void createIndexForBulkLoad(String index, int shards) {
+        createIndexForBulkLoad(index, shardSettings(shards).build());
+    }
+
+    public void createIndexForBulkLoad(String index, Settings settings) {
+        createIndex(index, Settings.builder()
+                .put(settings)
+                .put(INDEX_REFRESH_INTERVAL, "-1")
+                .put(INDEX_NUMBER_OF_REPLICAS, 0)
+                .put(INDEX_TRANSLOG_DURABILITY, "async")
+                .build());
+    }
+
+    /**
+     * Restores the settings changed by {@link #createIndexForBulkLoad(String, int)}, refreshes the index and
+     * waits for the replicas to be allocated. When the cluster doesn't have enough data nodes for all the replicas,
+     * this only waits for the index to be yellow.
+     */
+    public void finishBulkLoad(String index, int replicas) {
+        updateSettings(index, Settings.builder()
+                .put(INDEX_NUMBER_OF_REPLICAS, replicas)
+                .putNull(INDEX_REFRESH_INTERVAL)
+                .putNull(INDEX_TRANSLOG_DURABILITY)
+                .build());
+        refresh(index);
+        waitForReplicas(index, replicas);
+    }
+
+    /**
+     * Waits for the index to be green or, when the cluster doesn't have enough data nodes for all the replicas, yellow
+     */
+    private void waitForReplicas(String index, int replicas) {
+        int dataNodes = esClient.getClient()
+                .admin()
+                .cluster()
+                .prepareHealth()
+                .get()
+                .getNumberOfDataNodes();
+        waitForStatus(index, replicas < dataNodes ? ClusterHealthStatus.GREEN : ClusterHealthStatus.YELLOW, DEFAULT_HEALTH_TIMEOUT);
+    }
+
+    private static Settings.Builder shardSettings(int shards) {
+        Settings.Builder settings = Settings.builder();
+        if (shards > 0) {
+            settings.put(INDEX_NUMBER_OF_SHARDS, shards);
+        }
+        return settings;
+    }
+
+    public void createIndex(String index, Settings settings) {
         if (!indexExists(index)) {
             CreateIndexRequest request = new CreateIndexRequest(index);
 
-            if (shards > 0) {
-                Settings.Builder settings = Settings.builder()
-                        .put("index.number_of_shards", shards);
+            if (!settings.isEmpty()) {
                 request = request.settings(settings);
             }
 
@@ -97,23 +193,65 @@ public class Admin {
                     .create(request)
                     .actionGet();
             checkResponse(response);
-            final RefreshResponse refresh = esClient
-                    .getClient()
-                    .admin()
-                    .indices()
-                    .prepareRefresh(index)
-                    .execute()
-                    .actionGet();
-            if (refresh.getSuccessfulShards() < 1) {
-                throw new SearchException(String.format("Index fail in %s shards.", refresh.getFailedShards()));
-            }
+            invalidateMetadata();
+            refresh(index);
             log.info("Created index: {}", index);
         } else {
             log.info("Index {} already exists. Skipping", index);
         }
     }
 
+    public void refresh(String index) {
+        final RefreshResponse refresh = esClient
+                .getClient()
+                .admin()
+                .indices()
+                .prepareRefresh(index)
+                .execute()
+                .actionGet();
+        if (refresh.getSuccessfulShards() < 1) {
+            throw new SearchException(String.format("Index fail in %s shards.", refresh.getFailedShards()));
+        }
+    }
+
+    public void updateSettings(String index, Settings settings) {
+        UpdateSettingsResponse response = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareUpdateSettings(index)
+                .setSettings(settings)
+                .execute()
+                .actionGet();
+        checkResponse(response);
+    }
+
+    public void waitForGreen(String index) {
+        waitForGreen(index, DEFAULT_HEALTH_TIMEOUT);
+    }
+
+    public void waitForGreen(String index, TimeValue timeout) {
+        waitForStatus(index, ClusterHealthStatus.GREEN, timeout);
+    }
+
+    public void waitForStatus(String index, ClusterHealthStatus status, TimeValue timeout) {
+        ClusterHealthResponse response = esClient.getClient()
+                .admin()
+                .cluster()
+                .prepareHealth(index)
+                .setWaitForStatus(status)
+                .setTimeout(timeout)
+                .execute()
+                .actionGet();
+        if (response.isTimedOut()) {
+            throw new SearchException(String.format("Index %s is not %s after %s. Status is %s", index, status, timeout, response.getStatus()));
+        }
+    }
+
     public boolean aliasExists(String aliasName) {
+        Metadata metadata = cachedMetadata(aliasName);
+        if (metadata != null) {
+            return metadata.aliases.containsKey(aliasName);
+        }
         AliasesExistResponse response = esClient.getClient()
                 .admin()
                 .indices()
@@ -138,6 +276,7 @@ public class Admin {
             req = req.addAlias(indices, aliasName);
         }
         IndicesAliasesResponse response = req.execute().actionGet();
+        invalidateMetadata();
         checkResponse(response);
     }
 
@@ -148,6 +287,7 @@ public class Admin {
                 .removeAlias(fromIndex, alias)
                 .addAlias(toIndex, alias)
                 .execute().actionGet();
+        invalidateMetadata();
         checkResponse(response);
     }
 
@@ -167,11 +307,16 @@ public class Admin {
                     .prepareAliases()
                     .removeAlias(indices, alias)
                     .execute().actionGet();
+            invalidateMetadata();
             checkResponse(removeResponse);
         }
     }
 
     public List<String> indicesForAlias(String alias) {
+        Metadata metadata = cachedMetadata(alias);
+        if (metadata != null) {
+            return new ArrayList<>(metadata.aliases.getOrDefault(alias, Collections.emptyList()));
+        }
         GetAliasesRequest r = new GetAliasesRequest(alias);
         GetAliasesResponse response = esClient.getClient()
                 .admin()
@@ -189,6 +334,10 @@ public class Admin {
     }
 
     public boolean indexExists(String index) {
+        Metadata metadata = cachedMetadata(index);
+        if (metadata != null) {
+            return metadata.indices.contains(index);
+        }
         IndicesExistsResponse response = esClient.getClient()
                 .admin()
                 .indices()
@@ -205,43 +354,382 @@ public class Admin {
                 .indices()
                 .delete(deleteRequest)
                 .actionGet();
+        invalidateMetadata();
         checkResponse(response);
     }
 
     public void copyData(String srcIndex, String targetIndex) {
-        List<SearchHit> hits = new ArrayList<>();
-        Scroll.scrollIndex(esClient, srcIndex)
-                .forEach((hit) -> {
-                    hits.add(hit);
-                    if (hits.size() == DATA_COPY_BATCH_SIZE) {
-                        bulkIndex(hits, targetIndex);
-                        hits.clear();
+        dataCopy(srcIndex, targetIndex).copy();
+    }
+
+    /**
+     * A parallel copy of all the documents in srcIndex, which can be configured before calling {@link DataCopy#copy()}
+     */
+    public DataCopy dataCopy(String srcIndex, String targetIndex) {
+        return new DataCopy(esClient, srcIndex, targetIndex);
+    }
+
+    /**
+     * Copies the data with the _reindex API, on the cluster
+     */
+    public void reindex(String srcIndex, String targetIndex) {
+        prepareReindex(srcIndex, targetIndex).copy();
+    }
+
+    public Reindex prepareReindex(String srcIndex, String targetIndex) {
+        return new Reindex(esClient, srcIndex, targetIndex);
+    }
+
+    /**
+     * Creates targetIndex with fewer shards (a factor of the number of shards of srcIndex), by hard-linking the segments
+     * of srcIndex rather than copying the documents. srcIndex is made read-only and its shards are moved to the data node
+     * with the most free disk first, and its settings are restored once targetIndex is allocated. Writes to srcIndex
+     * fail while this runs.
+     */
+    public void shrinkIndex(String srcIndex, String targetIndex, int shards) {
+        int srcShards = getShards(srcIndex);
+        if (shards >= srcShards || srcShards % shards != 0) {
+            throw new IllegalArgumentException(String.format("Cannot shrink %s from %s to %s shards, which is not a smaller factor", srcIndex, srcShards, shards));
+        }
+        String node = shrinkNode(srcIndex);
+        Settings original = getSettings(srcIndex);
+        updateSettings(srcIndex, Settings.builder()
+                .put(INDEX_ROUTING_REQUIRE_NAME, node)
+                .put(INDEX_BLOCKS_WRITE, true)
+                .build());
+        try {
+            ClusterHealthResponse health = esClient.getClient()
+                    .admin()
+                    .cluster()
+                    .prepareHealth(srcIndex)
+                    .setWaitForNoRelocatingShards(true)
+                    .setWaitForYellowStatus()
+                    .setTimeout(DEFAULT_HEALTH_TIMEOUT)
+                    .get();
+            if (health.isTimedOut()) {
+                throw new SearchException(String.format("Shards of %s could not be moved to %s after %s", srcIndex, node, DEFAULT_HEALTH_TIMEOUT));
+            }
+            resize(srcIndex, targetIndex, shards, ResizeType.SHRINK);
+        } finally {
+            updateSettings(srcIndex, restore(original, INDEX_ROUTING_REQUIRE_NAME, INDEX_BLOCKS_WRITE));
+        }
+    }
+
+    /**
+     * The data node with the most free disk, which has to hold a copy of every shard for the shrink
+     */
+    private String shrinkNode(String srcIndex) {
+        long size = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareStats(srcIndex)
+                .setStore(true)
+                .get()
+                .getPrimaries()
+                .getStore()
+                .getSizeInBytes();
+        NodeStats best = null;
+        for (NodeStats node : esClient.getClient().admin().cluster().prepareNodesStats().setFs(true).get().getNodes()) {
+            if (node.getNode().isDataNode() && (best == null || available(node) > available(best))) {
+                best = node;
+            }
+        }
+        if (best == null || available(best) < size) {
+            throw new SearchException(String.format("No data node has the %s bytes of free disk needed to shrink %s", size, srcIndex));
+        }
+        return best.getNode().getName();
+    }
+
+    private static long available(NodeStats node) {
+        return node.getFs().getTotal().getAvailable().getBytes();
+    }
+
+    /**
+     * Settings putting the keys back to their values in the original settings, or removing them if they weren't set
+     */
+    private static Settings restore(Settings original, String... keys) {
+        Settings.Builder settings = Settings.builder();
+        for (String key : keys) {
+            String value = original.get(key);
+            if (value == null) {
+                settings.putNull(key);
+            } else {
+                settings.put(key, value);
+            }
+        }
+        return settings.build();
+    }
+
+    /**
+     * Creates targetIndex with more shards (a multiple of the number of shards of srcIndex), by hard-linking the
+     * segments of srcIndex rather than copying the documents. srcIndex has to be created with
+     * {@link #INDEX_NUMBER_OF_ROUTING_SHARDS} set to a multiple of the target number of shards. srcIndex is read-only
+     * until targetIndex is allocated, so writes to it fail while this runs.
+     */
+    public void splitIndex(String srcIndex, String targetIndex, int shards) {
+        IndexMetaData metadata = esClient.getClient()
+                .admin()
+                .cluster()
+                .prepareState()
+                .clear()
+                .setMetaData(true)
+                .setIndices(srcIndex)
+                .get()
+                .getState()
+                .getMetaData()
+                .index(srcIndex);
+        if (metadata == null) {
+            throw new SearchException("Could not find index " + srcIndex);
+        }
+        int srcShards = metadata.getNumberOfShards();
+        if (shards <= srcShards || shards % srcShards != 0) {
+            throw new IllegalArgumentException(String.format("Cannot split %s from %s to %s shards, which is not a larger multiple", srcIndex, srcShards, shards));
+        }
+        if (metadata.getRoutingNumShards() % shards != 0) {
+            throw new IllegalArgumentException(String.format("Cannot split %s to %s shards, which is not a factor of its %s routing shards", srcIndex, shards, metadata.getRoutingNumShards()));
+        }
+        Settings original = metadata.getSettings();
+        updateSettings(srcIndex, Settings.builder()
+                .put(INDEX_BLOCKS_WRITE, true)
+                .build());
+        try {
+            resize(srcIndex, targetIndex, shards, ResizeType.SPLIT);
+        } finally {
+            updateSettings(srcIndex, restore(original, INDEX_BLOCKS_WRITE));
+        }
+    }
+
+    private void resize(String srcIndex, String targetIndex, int shards, ResizeType type) {
+        int replicas = getReplicas(srcIndex);
+        ResizeResponse response = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareResizeIndex(srcIndex, targetIndex)
+                .setResizeType(type)
+                .setSettings(shardSettings(shards)
+                        .put(INDEX_NUMBER_OF_REPLICAS, replicas)
+                        .putNull(INDEX_ROUTING_REQUIRE_NAME)
+                        .putNull(INDEX_BLOCKS_WRITE)
+                        .build())
+                .get();
+        checkResponse(response);
+        invalidateMetadata();
+        waitForReplicas(targetIndex, replicas);
+        log.info("Resized ({}) index {} to {} with {} shards", type, srcIndex, targetIndex, shards);
+    }
+
+    /**
+     * Runs the queries against the index until their latency settles
+     *
+     * @return The number of rounds run
+     */
+    public int warmup(String index, Collection<QueryBuilder> queries) {
+        return prepareWarmup(index, queries).run();
+    }
+
+    public Warmup prepareWarmup(String index, Collection<QueryBuilder> queries) {
+        return new Warmup(esClient, index, queries);
+    }
+
+    /**
+     * The largest value of a numeric or date field in the index, formatted as per the field mapping, or null if
+     * no document has the field
+     */
+    public String maxValue(String index, String field) {
+        SearchResponse response = esClient.getClient()
+                .prepareSearch(index)
+                .setSize(0)
+                .addAggregation(AggregationBuilders.max(field).field(field))
+                .get();
+        Max max = response.getAggregations().get(field);
+        return Double.isInfinite(max.getValue()) ? null : max.getValueAsString();
+    }
+
+    /**
+     * Merges each shard of the index down to at most maxSegments segments, meant for indices that won't be written to
+     * anymore (or rarely). Blocks until the merge is done, logging the segment count while it runs, then refreshes the
+     * index so searches use the merged segments.
+     */
+    public SegmentsStats forceMerge(String index, int maxSegments) {
+        SegmentsStats before = getSegmentStats(index);
+        log.info("Force merging {} from {} segments to {} per shard", index, before.getCount(), maxSegments);
+        PlainActionFuture<ForceMergeResponse> future = PlainActionFuture.newFuture();
+        esClient.getClient()
+                .admin()
+                .indices()
+                .prepareForceMerge(index)
+                .setMaxNumSegments(maxSegments)
+                .setFlush(true)
+                .execute(future);
+
+        ForceMergeResponse response;
+        try {
+            while (true) {
+                try {
+                    response = future.get(FORCE_MERGE_POLL_INTERVAL.millis(), TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    log.info("Force merge of {} in progress, {} segments", index, getSegmentStats(index).getCount());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while waiting for force merge of " + index, e);
+        } catch (ExecutionException e) {
+            throw new SearchException("Could not force merge " + index, e.getCause());
+        }
+        if (response.getFailedShards() > 0) {
+            throw new SearchException(String.format("Force merge of %s failed in %s shards: %s",
+                    index, response.getFailedShards(), Arrays.toString(response.getShardFailures())));
+        }
+        refresh(index);
+        SegmentsStats after = getSegmentStats(index);
+        log.info("Force merged {} to {} segments ({} bytes of segment memory)", index, after.getCount(), after.getMemoryInBytes());
+        return after;
+    }
+
+    /**
+     * Segment statistics (count, memory) for the primary shards of the index
+     */
+    public SegmentsStats getSegmentStats(String index) {
+        IndicesStatsResponse response = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareStats(index)
+                .clear()
+                .setSegments(true)
+                .get();
+        return response.getPrimaries().getSegments();
+    }
+
+    public TimeValue getMetadataCacheTtl() {
+        return metadataCacheTtl;
+    }
+
+    /**
+     * Enables a cache for {@link #indexExists(String)}, {@link #aliasExists(String)} and {@link #indicesForAlias(String)},
+     * which are then served from a snapshot of the index names and aliases, taken at most this long ago. The snapshot is
+     * also discarded whenever indices or aliases are changed through this instance. Changes made by other clients
+     * are only seen once the snapshot expires. Null or zero disables the cache (the default).
+     */
+    public void setMetadataCacheTtl(TimeValue metadataCacheTtl) {
+        this.metadataCacheTtl = metadataCacheTtl;
+        invalidateMetadata();
+    }
+
+    public void invalidateMetadata() {
+        metadataGeneration.incrementAndGet();
+        metadata = null;
+    }
+
+    /**
+     * @return A fresh enough snapshot, or null if the cache is disabled or can't answer for this name (wildcards, etc.)
+     */
+    private Metadata cachedMetadata(String name) {
+        if (metadataCacheTtl == null || metadataCacheTtl.nanos() <= 0 || name == null || Regex.isSimpleMatchPattern(name) || name.contains(",")) {
+            return null;
+        }
+        Metadata current = metadata;
+        if (isStale(current)) {
+            synchronized (this) {
+                current = metadata;
+                if (isStale(current)) {
+                    current = loadMetadata();
+                    if (current.generation != metadataGeneration.get()) {
+                        // Invalidated while loading, so the caller queries the cluster directly instead
+                        return null;
                     }
-                });
-        bulkIndex(hits, targetIndex);
-    }
-
-    private void bulkIndex(List<SearchHit> hits, String targetIndex) {
-        if (hits.size() > 0) {
-            BulkRequestBuilder request = esClient.getClient().prepareBulk();
-            for (SearchHit hit : hits) {
-                IndexRequestBuilder indexRequest = esClient.getClient()
-                        .prepareIndex()
-                        .setIndex(targetIndex)
-                        .setType(hit.getType())
-                        .setId(hit.getId())
-                        .setSource(hit.getSourceAsString(), XContentType.JSON);
-                request.add(indexRequest);
+                    metadata = current;
+                }
             }
-            BulkResponse response = request.execute().actionGet();
-            if (response.hasFailures()) {
-                throw new SearchException("Could not index all documents. Error message is: " + response.buildFailureMessage());
+        }
+        return current;
+    }
+
+    private boolean isStale(Metadata snapshot) {
+        return snapshot == null
+                || snapshot.generation != metadataGeneration.get()
+                || System.nanoTime() - snapshot.createdNanos > metadataCacheTtl.nanos();
+    }
+
+    private Metadata loadMetadata() {
+        // Read before the request, so an invalidation during the load makes this snapshot stale straight away
+        long generation = metadataGeneration.get();
+        // Index names and aliases only, rather than the whole cluster metadata with all the mappings and templates
+        GetIndexResponse response = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareGetIndex()
+                .addFeatures(GetIndexRequest.Feature.ALIASES)
+                .setIndicesOptions(IndicesOptions.fromOptions(true, true, true, true))
+                .get();
+        Set<String> indices = new HashSet<>(Arrays.asList(response.getIndices()));
+        Map<String, List<String>> aliases = new HashMap<>();
+        for (ObjectObjectCursor<String, List<AliasMetaData>> cursor : response.getAliases()) {
+            for (AliasMetaData alias : cursor.value) {
+                aliases.computeIfAbsent(alias.alias(), key -> new ArrayList<>()).add(cursor.key);
             }
         }
+        return new Metadata(generation, indices, aliases);
+    }
+
+    /**
+     * Points the alias to a new index, if the current one has at least maxDocs documents (or regardless, if maxDocs
+     * is zero)
+     *
+     * @param newIndexAliases Other aliases the new index is added to
+     * @return true if the alias was moved
+     */
+    public boolean rollover(String alias, String newIndex, long maxDocs, int shards, String... newIndexAliases) {
+        RolloverRequestBuilder request = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareRolloverIndex(alias)
+                .setNewIndexName(newIndex);
+        for (String newIndexAlias : newIndexAliases) {
+            request.alias(new Alias(newIndexAlias));
+        }
+        if (maxDocs > 0) {
+            request.addMaxIndexDocsCondition(maxDocs);
+        }
+        if (shards > 0) {
+            request.settings(shardSettings(shards).build());
+        }
+        RolloverResponse response = request.execute().actionGet();
+        invalidateMetadata();
+        if (response.isRolledOver()) {
+            log.info("Rolled over alias {} from {} to {}", alias, response.getOldIndex(), response.getNewIndex());
+        }
+        return response.isRolledOver();
     }
 
+    /**
+     * Creation time (epoch millis) of the matching indices
+     */
+    public Map<String, Long> getCreationDates(String indices) {
+        GetSettingsResponse response = esClient.getClient()
+                .admin()
+                .indices()
+                .prepareGetSettings(indices)
+                .get();
+        Map<String, Long> creationDates = new HashMap<>();
+        response.getIndexToSettings()
+                .forEach(cursor -> creationDates.put(cursor.key, cursor.value.getAsLong(IndexMetaData.SETTING_CREATION_DATE, 0L)));
+        return creationDates;
+    }
 
     public int getShards(String index) {
+        return getSettings(index).getAsInt(INDEX_NUMBER_OF_SHARDS, null);
+    }
+
+    public int getReplicas(String index) {
+        return getSettings(index).getAsInt(INDEX_NUMBER_OF_REPLICAS, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * The settings explicitly set on the index (not the defaults)
+     */
+    public Settings getSettings(String index) {
         GetSettingsResponse response = esClient.getClient()
                 .admin()
                 .indices()
@@ -251,6 +739,19 @@ public class Admin {
         if (!settings.containsKey(index)) {
             throw new SearchException("Could not find settings for index " + index);
         }
-        return settings.get(index).getAsInt(INDEX_NUMBER_OF_SHARDS, null);
+        return settings.get(index);
+    }
+
+    private static class Metadata {
+        private final long createdNanos = System.nanoTime();
+        private final long generation;
+        private final Set<String> indices;
+        private final Map<String, List<String>> aliases;
+
+        private Metadata(long generation, Set<String> indices, Map<String, List<String>> aliases) {
+            this.generation = generation;
+            this.indices = indices;
+            this.aliases = aliases;
+        }
     }
 }
@@ -1,5 +1,10 @@
 package com.wirktop.esutils;
 
+import com.wirktop.esutils.search.QuerySampler;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+
 import java.util.Collection;
 import java.util.UUID;
 import java.util.regex.Pattern;
@@ -9,6 +14,16 @@ import java.util.regex.Pattern;
  */
 public class AliasWrappedBucket extends DataBucket {
 
+    private boolean bulkLoad;
+    private boolean reindex;
+    private String deltaField;
+    private int forceMergeSegments;
+    private int routingShards;
+    private Collection<QueryBuilder> warmupQueries;
+    private QuerySampler warmupSampler;
+    private DataCopy.CopyListener copyListener;
+    private volatile Pattern indexPattern;
+
     public AliasWrappedBucket(String index) {
         super(index);
     }
@@ -23,7 +38,7 @@ public class AliasWrappedBucket extends DataBucket {
         String crtIndex = actualIndex(admin);
         if (crtIndex == null || !admin.indexExists(crtIndex)) {
             String nextIndex = newIndexName();
-            admin.createIndex(nextIndex, shards);
+            admin.createIndex(nextIndex, indexSettings(shards));
             admin.createAlias(alias, nextIndex);
         }
     }
@@ -36,11 +51,19 @@ public class AliasWrappedBucket extends DataBucket {
         String alias = getIndex();
         String crtIndex = actualIndex(admin);
         String nextIndex = newIndexName();
-        admin.createIndex(nextIndex, shards);
+        newIndex(admin, nextIndex, shards);
         admin.moveAlias(alias, crtIndex, nextIndex);
         admin.removeIndex(crtIndex);
     }
 
+    /**
+     * Restores the settings of an index created in bulk-load mode by {@link #wipe(Admin, int)}, once the data
+     * has been loaded
+     */
+    public void finishBulkLoad(Admin admin, int replicas) {
+        admin.finishBulkLoad(actualIndex(admin), replicas);
+    }
+
     public void refresh(Admin admin) {
         refresh(admin, 0);
     }
@@ -49,12 +72,92 @@ public class AliasWrappedBucket extends DataBucket {
         String alias = getIndex();
         String crtIndex = actualIndex(admin);
         String nextIndex = newIndexName();
-        admin.createIndex(nextIndex, shards);
-        admin.copyData(crtIndex, nextIndex);
+        newIndex(admin, nextIndex, shards);
+        String watermark = null;
+        if (deltaField != null) {
+            admin.refresh(crtIndex);
+            watermark = admin.maxValue(crtIndex, deltaField);
+        }
+        copyData(admin, crtIndex, nextIndex, null);
+        if (deltaField != null) {
+            // Catch up with the documents written during the first pass, so the last pass is short
+            watermark = copyDelta(admin, crtIndex, nextIndex, watermark);
+        }
+        // Before the last pass, which only adds a few small segments
+        if (forceMergeSegments > 0) {
+            admin.forceMerge(nextIndex, forceMergeSegments);
+        }
+        if (bulkLoad) {
+            admin.finishBulkLoad(nextIndex, admin.getReplicas(crtIndex));
+        }
+        warmup(admin, nextIndex);
+        if (deltaField != null) {
+            // The documents written while merging, restoring replicas and warming up
+            copyDelta(admin, crtIndex, nextIndex, watermark);
+        }
         admin.moveAlias(alias, crtIndex, nextIndex);
         admin.removeIndex(crtIndex);
     }
 
+    /**
+     * Copies the documents whose deltaField is at least the watermark
+     *
+     * @return The watermark for the next pass: the largest value in srcIndex before this pass started
+     */
+    private String copyDelta(Admin admin, String srcIndex, String targetIndex, String watermark) {
+        // The scroll only sees refreshed documents
+        admin.refresh(srcIndex);
+        String nextWatermark = admin.maxValue(srcIndex, deltaField);
+        copyData(admin, srcIndex, targetIndex, watermark != null
+                ? QueryBuilders.rangeQuery(deltaField).gte(watermark)
+                : QueryBuilders.matchAllQuery());
+        admin.refresh(targetIndex);
+        return nextWatermark;
+    }
+
+    /**
+     * Moves the alias to a new index with a different number of shards, created with {@link Admin#shrinkIndex} or
+     * {@link Admin#splitIndex} from the current one rather than by copying the documents. Writes fail until the alias
+     * is moved.
+     *
+     * @return false if the current index already has this number of shards
+     * @throws IllegalArgumentException If the new number of shards is not a factor of the current one, or a multiple
+     *                                  of it which is also a factor of the routing shards. Nothing is changed then.
+     */
+    public boolean reshard(Admin admin, int shards) {
+        String alias = getIndex();
+        String crtIndex = actualIndex(admin);
+        int crtShards = admin.getShards(crtIndex);
+        if (shards == crtShards) {
+            return false;
+        }
+        String nextIndex = newIndexName();
+        if (shards < crtShards) {
+            admin.shrinkIndex(crtIndex, nextIndex, shards);
+        } else {
+            admin.splitIndex(crtIndex, nextIndex, shards);
+        }
+        admin.moveAlias(alias, crtIndex, nextIndex);
+        admin.removeIndex(crtIndex);
+        return true;
+    }
+
+    private void copyData(Admin admin, String srcIndex, String targetIndex, QueryBuilder query) {
+        if (reindex) {
+            Reindex copy = admin.prepareReindex(srcIndex, targetIndex);
+            copy.setQuery(query);
+            copy.setPreserveVersions(deltaField != null);
+            copy.setCopyListener(copyListener);
+            copy.copy();
+        } else {
+            DataCopy copy = admin.dataCopy(srcIndex, targetIndex);
+            copy.setQuery(query);
+            copy.setPreserveVersions(deltaField != null);
+            copy.setCopyListener(copyListener);
+            copy.copy();
+        }
+    }
+
     public DataBucket createNewIndex(Admin admin) {
         return createNewIndex(admin, 0);
     }
@@ -62,12 +165,19 @@ public class AliasWrappedBucket extends DataBucket {
     public DataBucket createNewIndex(Admin admin, int shards) {
         String index = newIndexName();
         DataBucket dataBucket = new DataBucket(index);
-        admin.createIndex(index, shards);
+        newIndex(admin, index, shards);
         return dataBucket;
     }
 
     public AliasWrappedBucket wrap(Admin admin, DataBucket dataBucket, boolean deleteCurrentIndex) {
         String oldIndex = actualIndex(admin);
+        if (forceMergeSegments > 0) {
+            admin.forceMerge(dataBucket.getIndex(), forceMergeSegments);
+        }
+        if (bulkLoad) {
+            admin.finishBulkLoad(dataBucket.getIndex(), oldIndex != null ? admin.getReplicas(oldIndex) : Admin.DEFAULT_REPLICAS);
+        }
+        warmup(admin, dataBucket.getIndex());
         admin.moveAlias(getIndex(), oldIndex, dataBucket.getIndex());
         if (deleteCurrentIndex) {
             admin.removeIndex(oldIndex);
@@ -75,9 +185,18 @@ public class AliasWrappedBucket extends DataBucket {
         return this;
     }
 
+    private void warmup(Admin admin, String index) {
+        Collection<QueryBuilder> queries = warmupQueries != null
+                ? warmupQueries
+                : warmupSampler != null ? warmupSampler.queries(getIndex()) : null;
+        if (queries != null && !queries.isEmpty()) {
+            admin.warmup(index, queries);
+        }
+    }
+
     public String actualIndex(Admin admin) {
         Collection<String> indices = admin.indicesForAlias(getIndex());
-        Pattern pattern = Pattern.compile(getIndex() + "\\..{32}");
+        Pattern pattern = indexPattern();
         for (String index : indices) {
             if (pattern.matcher(index).matches()) {
                 return index;
@@ -86,6 +205,140 @@ public class AliasWrappedBucket extends DataBucket {
         return null;
     }
 
+    /**
+     * Compiled once, unless a subclass returns a different name from {@link #getIndex()}
+     */
+    private Pattern indexPattern() {
+        String regex = getIndex() + "\\..{32}";
+        Pattern pattern = indexPattern;
+        if (pattern == null || !pattern.pattern().equals(regex)) {
+            pattern = Pattern.compile(regex);
+            indexPattern = pattern;
+        }
+        return pattern;
+    }
+
+    private void newIndex(Admin admin, String index, int shards) {
+        if (bulkLoad) {
+            admin.createIndexForBulkLoad(index, indexSettings(shards));
+        } else {
+            admin.createIndex(index, indexSettings(shards));
+        }
+    }
+
+    private Settings indexSettings(int shards) {
+        Settings.Builder settings = Settings.builder();
+        if (shards > 0) {
+            settings.put(Admin.INDEX_NUMBER_OF_SHARDS, shards);
+        }
+        if (routingShards > 0) {
+            settings.put(Admin.INDEX_NUMBER_OF_ROUTING_SHARDS, routingShards);
+        }
+        return settings.build();
+    }
+
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    /**
+     * When enabled, the indices created by {@link #refresh(Admin)}, {@link #wipe(Admin)} and {@link #createNewIndex(Admin)}
+     * are set up for a faster bulk load (no refreshes, no replicas, asynchronous translog). {@link #refresh(Admin)} and
+     * {@link #wrap(Admin, DataBucket, boolean)} restore the settings and wait for the index to be green before moving the
+     * alias, using the number of replicas of the current index. After {@link #wipe(Admin)}, the data is loaded while the
+     * alias already points to the new index, so {@link #finishBulkLoad(Admin, int)} has to be called once it's done.
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    public boolean isReindex() {
+        return reindex;
+    }
+
+    /**
+     * Makes {@link #refresh(Admin)} copy the data with the _reindex API rather than through the client
+     */
+    public void setReindex(boolean reindex) {
+        this.reindex = reindex;
+    }
+
+    public String getDeltaField() {
+        return deltaField;
+    }
+
+    /**
+     * Enables online refreshes: {@link #refresh(Admin)} copies the data while writes continue, then catches up with
+     * the documents whose deltaField (a timestamp or any other increasing value set on every write) is at least the
+     * largest value seen before the previous pass. One catch-up pass follows the full copy, and a last one runs right
+     * before the alias is moved, after the force merge, replica recovery and warmup. Copies keep the version of the
+     * source documents, so a stale copy never overwrites a newer one. Only writes made while the last pass runs, and
+     * deletes, are not carried over.
+     */
+    public void setDeltaField(String deltaField) {
+        this.deltaField = deltaField;
+    }
+
+    public int getForceMergeSegments() {
+        return forceMergeSegments;
+    }
+
+    /**
+     * When set, {@link #refresh(Admin)} and {@link #wrap(Admin, DataBucket, boolean)} force merge the new index down to
+     * this many segments per shard before moving the alias to it, once the bulk of the data has been copied (before
+     * the last catch-up pass of an online refresh). This is done before the replicas of a bulk-loaded index are
+     * restored, so they recover the merged segments. Zero (the default) disables it.
+     */
+    public void setForceMergeSegments(int forceMergeSegments) {
+        this.forceMergeSegments = forceMergeSegments;
+    }
+
+    public int getRoutingShards() {
+        return routingShards;
+    }
+
+    /**
+     * Sets {@link Admin#INDEX_NUMBER_OF_ROUTING_SHARDS} on the indices created for this bucket, which
+     * {@link #reshard(Admin, int)} needs for splitting them. The number of shards has to be a factor of it.
+     */
+    public void setRoutingShards(int routingShards) {
+        this.routingShards = routingShards;
+    }
+
+    public Collection<QueryBuilder> getWarmupQueries() {
+        return warmupQueries;
+    }
+
+    /**
+     * Queries replayed against the new index by {@link #refresh(Admin)} and {@link #wrap(Admin, DataBucket, boolean)}
+     * until their latency settles, before the alias is moved to it
+     */
+    public void setWarmupQueries(Collection<QueryBuilder> warmupQueries) {
+        this.warmupQueries = warmupQueries;
+    }
+
+    public QuerySampler getWarmupSampler() {
+        return warmupSampler;
+    }
+
+    /**
+     * Warms up the new index with the queries recently sampled for this bucket, unless warmup queries are set
+     */
+    public void setWarmupSampler(QuerySampler warmupSampler) {
+        this.warmupSampler = warmupSampler;
+    }
+
+    public DataCopy.CopyListener getCopyListener() {
+        return copyListener;
+    }
+
+    /**
+     * Reports the progress of each copy pass made by {@link #refresh(Admin)}
+     */
+    public void setCopyListener(DataCopy.CopyListener copyListener) {
+        this.copyListener = copyListener;
+    }
+
     private String newIndexName() {
         return getIndex() + "." + uuid();
     }
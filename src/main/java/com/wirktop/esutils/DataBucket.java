@@ -25,4 +25,12 @@ public class DataBucket {
     public String getIndex() {
         return index;
     }
+
+    /**
+     * The indices searched for this bucket. This is normally just {@link #getIndex()}, but some buckets span more
+     * than one index. Gets and explains by id always go to {@link #getIndex()}, as they need a single index.
+     */
+    public String[] getIndices() {
+        return new String[]{getIndex()};
+    }
 }
@@ -0,0 +1,322 @@
+package com.wirktop.esutils;
+
+import com.wirktop.esutils.index.BulkIndexException;
+import com.wirktop.esutils.index.BulkResult;
+import com.wirktop.esutils.index.IndexFailure;
+import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.index.RetryPolicy;
+import com.wirktop.esutils.search.Scroll;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Copies all the documents of an index into another one. The source is read with sliced scrolls (by default one
+ * slice per shard), each on its own thread, which send the bulk requests for their slice asynchronously. The number
+ * of in-flight bulk requests is bounded across all slices, and the overall rate can be throttled.
+ *
+ * @author Cosmin Marginean
+ */
+public class DataCopy {
+
+    private static final Logger log = LoggerFactory.getLogger(DataCopy.class);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ElasticClient esClient;
+    private final String srcIndex;
+    private final String targetIndex;
+    private int slices;
+    private int batchSize = Admin.DATA_COPY_BATCH_SIZE;
+    private int maxInFlight;
+    private double maxDocsPerSecond;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private CopyListener copyListener;
+    private QueryBuilder query;
+    private boolean preserveVersions;
+
+    private final List<IndexFailure> failures = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long total;
+    private Semaphore inFlight;
+    private long nextSendNanos;
+
+    public DataCopy(ElasticClient esClient, String srcIndex, String targetIndex) {
+        this.esClient = esClient;
+        this.srcIndex = srcIndex;
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * Can be called again, for a new copy with the same configuration, but not while a copy is running
+     *
+     * @return The number of documents copied
+     */
+    public long copy() {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A copy is already running");
+        }
+        try {
+            return runCopy();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private long runCopy() {
+        failures.clear();
+        copied.set(0);
+        nextSendNanos = 0;
+        int sliceCount = slices > 0 ? slices : sourceShards();
+        int permits = maxInFlight > 0 ? maxInFlight : sliceCount;
+        inFlight = new Semaphore(permits);
+        total = esClient.getClient()
+                .prepareSearch(srcIndex)
+                .setQuery(query != null ? query : QueryBuilders.matchAllQuery())
+                .setSize(0)
+                .get()
+                .getHits()
+                .getTotalHits();
+        Indexer indexer = esClient.indexer(new DataBucket(targetIndex));
+        indexer.setRetryPolicy(retryPolicy);
+
+        ExecutorService executor = Executors.newFixedThreadPool(sliceCount, runnable -> {
+            Thread thread = new Thread(runnable, "esutils-data-copy-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < sliceCount; i++) {
+                int slice = i;
+                futures.add(executor.submit(() -> {
+                    copySlice(indexer, slice, sliceCount);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            inFlight.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while copying data", e);
+        } catch (ExecutionException e) {
+            throw new SearchException("Could not copy data from " + srcIndex + " to " + targetIndex, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            throw new BulkIndexException(new ArrayList<>(failures));
+        }
+        log.info("Copied {} documents from {} to {}", copied.get(), srcIndex, targetIndex);
+        return copied.get();
+    }
+
+    /**
+     * Total number of shards of the source, which can also be an alias
+     */
+    private int sourceShards() {
+        Admin admin = esClient.admin();
+        if (!admin.aliasExists(srcIndex)) {
+            return admin.getShards(srcIndex);
+        }
+        int shards = 0;
+        for (String index : admin.indicesForAlias(srcIndex)) {
+            shards += admin.getShards(index);
+        }
+        return Math.max(1, shards);
+    }
+
+    private void copySlice(Indexer indexer, int slice, int sliceCount) throws InterruptedException {
+        BulkRequest request = new BulkRequest();
+        try (Stream<SearchHit> stream = Scroll.scrollIndex(esClient, srcIndex, query, batchSize, slice, sliceCount)) {
+            Iterator<SearchHit> hits = stream.iterator();
+            while (hits.hasNext()) {
+                SearchHit hit = hits.next();
+                Document document = new Document(hit.getId(), hit.getSourceRef());
+                IndexRequest indexRequest = new IndexRequest(targetIndex, hit.getType(), hit.getId())
+                        .source(document.getSourceRef(), document.getContentType());
+                if (preserveVersions) {
+                    indexRequest.version(hit.getVersion()).versionType(VersionType.EXTERNAL);
+                }
+                request.add(indexRequest);
+                if (request.numberOfActions() >= batchSize) {
+                    send(indexer, request);
+                    request = new BulkRequest();
+                }
+            }
+        }
+        if (request.numberOfActions() > 0) {
+            send(indexer, request);
+        }
+    }
+
+    private void send(Indexer indexer, BulkRequest request) throws InterruptedException {
+        throttle(request.numberOfActions());
+        inFlight.acquire();
+        try {
+            indexer.bulkAsync(request, new ActionListener<BulkResult>() {
+                @Override
+                public void onResponse(BulkResult result) {
+                    int failed = 0;
+                    for (IndexFailure failure : result.getFailures()) {
+                        // The target already has this version of the document, or a newer one
+                        if (!preserveVersions || failure.getStatus() != RestStatus.CONFLICT) {
+                            failures.add(failure);
+                            failed++;
+                        }
+                    }
+                    completed(result.getItems() - failed);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    log.error(e.getMessage(), e);
+                    for (int i = 0; i < request.numberOfActions(); i++) {
+                        failures.add(new IndexFailure(i, request.requests().get(i), ExceptionsHelper.status(e), e.getMessage(), e));
+                    }
+                    completed(0);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private void completed(int documents) {
+        long count = copied.addAndGet(documents);
+        inFlight.release();
+        if (copyListener != null) {
+            copyListener.progress(count, total);
+        }
+    }
+
+    private void throttle(int documents) throws InterruptedException {
+        if (maxDocsPerSecond > 0) {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long start = Math.max(now, nextSendNanos);
+                nextSendNanos = start + (long) (documents * TimeUnit.SECONDS.toNanos(1) / maxDocsPerSecond);
+                wait = start - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Number of sliced scrolls reading the source concurrently. Defaults to the number of shards of the source index
+     * (or of the indices behind it, if it's an alias).
+     */
+    public void setSlices(int slices) {
+        this.slices = slices;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Limit for the bulk requests in flight, across all slices. Defaults to the number of slices.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public double getMaxDocsPerSecond() {
+        return maxDocsPerSecond;
+    }
+
+    /**
+     * Throttles the copy to this many documents per second. Zero (the default) means unthrottled.
+     */
+    public void setMaxDocsPerSecond(double maxDocsPerSecond) {
+        this.maxDocsPerSecond = maxDocsPerSecond;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public QueryBuilder getQuery() {
+        return query;
+    }
+
+    /**
+     * Copies only the documents matching this query
+     */
+    public void setQuery(QueryBuilder query) {
+        this.query = query;
+    }
+
+    public boolean isPreserveVersions() {
+        return preserveVersions;
+    }
+
+    /**
+     * Indexes the copies with external versioning, using the version of the source documents. Copies that are
+     * older than (or the same as) the document in the target index are skipped.
+     */
+    public void setPreserveVersions(boolean preserveVersions) {
+        this.preserveVersions = preserveVersions;
+    }
+
+    public CopyListener getCopyListener() {
+        return copyListener;
+    }
+
+    public void setCopyListener(CopyListener copyListener) {
+        this.copyListener = copyListener;
+    }
+
+    /**
+     * Notified after every bulk request, from the thread that handled its response
+     */
+    public static interface CopyListener {
+
+        void progress(long copied, long total);
+    }
+}
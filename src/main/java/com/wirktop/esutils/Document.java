@@ -1,5 +1,14 @@
 package com.wirktop.esutils;
 
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+
 /**
  * @author Cosmin Marginean
  */
@@ -8,6 +17,7 @@ public class Document {
     private String id;
     private long version;
     private String source;
+    private BytesReference sourceRef;
 
     public Document(String id, String source) {
         this.id = id;
@@ -20,6 +30,20 @@ public class Document {
         this.source = source;
     }
 
+    /**
+     * @param sourceRef JSON, SMILE or CBOR source
+     */
+    public Document(String id, BytesReference sourceRef) {
+        this.id = id;
+        this.sourceRef = sourceRef;
+    }
+
+    public Document(String id, long version, BytesReference sourceRef) {
+        this.id = id;
+        this.version = version;
+        this.sourceRef = sourceRef;
+    }
+
     public String getId() {
         return id;
     }
@@ -36,11 +60,80 @@ public class Document {
         this.version = version;
     }
 
+    /**
+     * The source as a JSON string, converted if the document holds a binary (SMILE/CBOR) source
+     */
     public String getSource() {
+        if (source == null && sourceRef != null) {
+            XContentType contentType = getContentType();
+            if (contentType == XContentType.JSON) {
+                return sourceRef.utf8ToString();
+            }
+            try {
+                return XContentHelper.convertToJson(sourceRef, false, contentType);
+            } catch (IOException e) {
+                throw new SearchException(e.getMessage(), e);
+            }
+        }
         return source;
     }
 
     public void setSource(String source) {
         this.source = source;
+        this.sourceRef = null;
+    }
+
+    /**
+     * The source as raw bytes. Documents created from bytes (indexing POJOs, search hits, etc.) return them
+     * without any copy, while String sources are encoded on every call.
+     */
+    public BytesReference getSourceRef() {
+        if (sourceRef == null && source != null) {
+            return new BytesArray(source);
+        }
+        return sourceRef;
+    }
+
+    public void setSourceRef(BytesReference sourceRef) {
+        this.sourceRef = sourceRef;
+        this.source = null;
+    }
+
+    public XContentType getContentType() {
+        if (sourceRef == null) {
+            return XContentType.JSON;
+        }
+        BytesRef bytes = sourceRef.toBytesRef();
+        XContentType contentType = XContentFactory.xContentType(bytes.bytes, bytes.offset, bytes.length);
+        return contentType != null ? contentType : XContentType.JSON;
+    }
+
+    /**
+     * Size of the source in bytes, as sent to the cluster. String sources are measured as UTF-8, without encoding them.
+     */
+    public long sourceLength() {
+        if (sourceRef != null) {
+            return sourceRef.length();
+        }
+        return source != null ? utf8Length(source) : 0;
+    }
+
+    private static long utf8Length(String str) {
+        long length = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                // A surrogate pair is a single 4-byte code point
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
     }
 }
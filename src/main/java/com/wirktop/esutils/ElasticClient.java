@@ -2,12 +2,15 @@ package com.wirktop.esutils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.search.QuerySampler;
 import com.wirktop.esutils.search.Scroll;
+import com.wirktop.esutils.search.ScrollRegistry;
 import com.wirktop.esutils.search.Search;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,7 +30,11 @@ public class ElasticClient {
 
     private Client client;
     private Admin admin;
-    private Json json = new Json(new ObjectMapper());
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private XContentType contentType = XContentType.JSON;
+    private Json json = new Json(objectMapper, contentType);
+    private QuerySampler querySampler;
+    private final ScrollRegistry scrollRegistry = new ScrollRegistry(this);
 
     public ElasticClient(String clusterName, String commaSeparatedNodes) {
         this(transportClient(clusterName, splitNodes(commaSeparatedNodes)));
@@ -105,10 +112,40 @@ public class ElasticClient {
     }
 
     public void setObjectMapper(ObjectMapper objectMapper) {
-        json = new Json(objectMapper);
+        this.objectMapper = objectMapper;
+        json = new Json(objectMapper, contentType);
+    }
+
+    public XContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Encoding used for the source of the POJOs being indexed: JSON (default), SMILE or CBOR. Binary encodings
+     * produce smaller bulk payloads and are cheaper to parse, especially for number-heavy documents.
+     * Reading POJOs back works with any of these, regardless of this setting.
+     */
+    public void setContentType(XContentType contentType) {
+        json = new Json(objectMapper, contentType);
+        this.contentType = contentType;
     }
 
     public Json json() {
         return json;
     }
+
+    public ScrollRegistry scrollRegistry() {
+        return scrollRegistry;
+    }
+
+    public QuerySampler getQuerySampler() {
+        return querySampler;
+    }
+
+    /**
+     * Samples the queries run through {@link Search}, for warming up new indices. Not set by default.
+     */
+    public void setQuerySampler(QuerySampler querySampler) {
+        this.querySampler = querySampler;
+    }
 }
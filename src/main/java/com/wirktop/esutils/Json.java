@@ -1,6 +1,16 @@
 package com.wirktop.esutils;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -13,11 +23,43 @@ import java.io.StringWriter;
 public class Json {
 
     private static final Logger log = LoggerFactory.getLogger(Json.class);
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
 
     private ObjectMapper objectMapper;
+    private XContentType contentType;
+    private ObjectWriter bytesWriter;
 
     public Json(ObjectMapper objectMapper) {
+        this(objectMapper, XContentType.JSON);
+    }
+
+    /**
+     * @param contentType The encoding used by {@link #toBytes(Object)}: JSON, SMILE or CBOR. The ObjectMapper configuration
+     *                    (modules, custom serializers, etc.) applies to all of them.
+     */
+    public Json(ObjectMapper objectMapper, XContentType contentType) {
         this.objectMapper = objectMapper;
+        this.contentType = contentType;
+        JsonFactory factory = factory(contentType);
+        this.bytesWriter = factory != null
+                ? objectMapper.writer().with(factory)
+                : objectMapper.writer();
+    }
+
+    private static JsonFactory factory(XContentType contentType) {
+        if (contentType == XContentType.JSON) {
+            return null;
+        } else if (contentType == XContentType.SMILE) {
+            return SMILE_FACTORY;
+        } else if (contentType == XContentType.CBOR) {
+            return CBOR_FACTORY;
+        }
+        throw new IllegalArgumentException("Unsupported content type " + contentType);
+    }
+
+    public XContentType contentType() {
+        return contentType;
     }
 
     public <T> String toString(T pojo) {
@@ -31,6 +73,49 @@ public class Json {
         }
     }
 
+    /**
+     * Serializes straight to bytes in this instance's content type, using Jackson's recycled buffers rather than an
+     * intermediate String
+     */
+    public <T> byte[] toBytes(T pojo) {
+        try {
+            return bytesWriter.writeValueAsBytes(pojo);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    public <T> BytesReference toBytesRef(T pojo) {
+        return new BytesArray(toBytes(pojo));
+    }
+
+    public <T> T toPojo(byte[] source, Class<T> pojoClass) {
+        return toPojo(new BytesArray(source), pojoClass);
+    }
+
+    /**
+     * Reads a JSON, SMILE or CBOR source, regardless of the content type of this instance
+     */
+    public <T> T toPojo(BytesReference source, Class<T> pojoClass) {
+        if (source == null) {
+            return null;
+        }
+        BytesRef bytes = source.toBytesRef();
+        XContentType sourceType = XContentFactory.xContentType(bytes.bytes, bytes.offset, bytes.length);
+        JsonFactory factory = factory(sourceType != null ? sourceType : XContentType.JSON);
+        try {
+            if (factory == null) {
+                return objectMapper.readValue(bytes.bytes, bytes.offset, bytes.length, pojoClass);
+            }
+            ObjectReader reader = objectMapper.readerFor(pojoClass).with(factory);
+            return reader.readValue(bytes.bytes, bytes.offset, bytes.length);
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
     public <T> T toPojo(String jsonString, Class<T> pojoClass) {
         try {
             return objectMapper.readValue(jsonString, pojoClass);
@@ -0,0 +1,252 @@
+package com.wirktop.esutils;
+
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.admin.cluster.node.tasks.list.ListTasksResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.reindex.AbstractBulkByScrollRequest;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.BulkByScrollTask;
+import org.elasticsearch.index.reindex.ReindexAction;
+import org.elasticsearch.index.reindex.ReindexRequestBuilder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.tasks.TaskInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Copies all the documents of an index into another one with the {@code _reindex} API, so the data never goes
+ * through the client. The request is submitted asynchronously and the reindex task is polled for progress while it
+ * runs.
+ * <p>
+ * The transport client can't detach from the request (like {@code wait_for_completion=false} does over HTTP), so
+ * the request carries a unique {@code X-Opaque-Id} header instead, which identifies its task among the running
+ * ones. Progress is then read from that task only, and it's cancelled if the waiting thread is interrupted.
+ *
+ * @author Cosmin Marginean
+ */
+public class Reindex {
+
+    private static final Logger log = LoggerFactory.getLogger(Reindex.class);
+    public static final TimeValue DEFAULT_POLL_INTERVAL = TimeValue.timeValueSeconds(5);
+
+    private final ElasticClient esClient;
+    private final String srcIndex;
+    private final String targetIndex;
+    private int slices = AbstractBulkByScrollRequest.AUTO_SLICES;
+    private float requestsPerSecond = Float.POSITIVE_INFINITY;
+    private TimeValue pollInterval = DEFAULT_POLL_INTERVAL;
+    private DataCopy.CopyListener copyListener;
+    private QueryBuilder query;
+    private boolean preserveVersions;
+
+    public Reindex(ElasticClient esClient, String srcIndex, String targetIndex) {
+        this.esClient = esClient;
+        this.srcIndex = srcIndex;
+        this.targetIndex = targetIndex;
+    }
+
+    /**
+     * @return The number of documents created or updated in the target index
+     */
+    public long copy() {
+        String opaqueId = UUID.randomUUID().toString();
+        Client client = esClient.getClient().filterWithHeader(Collections.singletonMap(Task.X_OPAQUE_ID, opaqueId));
+        ReindexRequestBuilder request = ReindexAction.INSTANCE.newRequestBuilder(client)
+                .source(srcIndex)
+                .destination(targetIndex)
+                .setSlices(slices)
+                .setRequestsPerSecond(requestsPerSecond);
+        if (query != null) {
+            request.filter(query);
+        }
+        if (preserveVersions) {
+            request.abortOnVersionConflict(false);
+            request.destination().setVersionType(VersionType.EXTERNAL);
+        }
+        PlainActionFuture<BulkByScrollResponse> future = PlainActionFuture.newFuture();
+        request.execute(future);
+
+        BulkByScrollResponse response;
+        TaskId taskId = null;
+        try {
+            while (true) {
+                try {
+                    response = future.get(pollInterval.millis(), TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    taskId = poll(taskId, opaqueId);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Before restoring the interrupt flag, which would fail the cancel request
+            cancel(taskId, opaqueId);
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while waiting for reindex from " + srcIndex + " to " + targetIndex, e);
+        } catch (ExecutionException e) {
+            throw new SearchException("Could not reindex from " + srcIndex + " to " + targetIndex, e.getCause());
+        }
+
+        if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty() || response.isTimedOut()
+                || response.getReasonCancelled() != null) {
+            throw new SearchException(String.format("Reindex from %s to %s failed. Bulk failures: %s. Search failures: %s. Timed out: %s. Cancelled: %s",
+                    srcIndex, targetIndex, response.getBulkFailures(), response.getSearchFailures(), response.isTimedOut(),
+                    response.getReasonCancelled()));
+        }
+        long copied = response.getCreated() + response.getUpdated();
+        if (copyListener != null) {
+            copyListener.progress(copied, response.getTotal());
+        }
+        log.info("Reindexed {} documents from {} to {} in {}", copied, srcIndex, targetIndex, response.getTook());
+        return copied;
+    }
+
+    /**
+     * @return The id of the reindex task submitted with this opaque id, or null if it's not running (yet)
+     */
+    private TaskId findTask(String opaqueId) {
+        ListTasksResponse tasks = esClient.getClient()
+                .admin()
+                .cluster()
+                .prepareListTasks()
+                .setActions(ReindexAction.NAME)
+                .get();
+        for (TaskInfo task : tasks.getTasks()) {
+            // Only the parent task of a sliced reindex, which aggregates the status of its slices
+            if (!task.getParentTaskId().isSet() && opaqueId.equals(task.getHeaders().get(Task.X_OPAQUE_ID))) {
+                return task.getTaskId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the status of the task, and reports it to the copy listener if there is one. The outcome of a cancelled
+     * or failed task comes with the response, so a failed poll is only logged and the next one tries again.
+     *
+     * @return The id of the task, once it's been found
+     */
+    private TaskId poll(TaskId taskId, String opaqueId) {
+        TaskInfo task;
+        try {
+            taskId = taskId != null ? taskId : findTask(opaqueId);
+            if (taskId == null) {
+                return null;
+            }
+            task = esClient.getClient()
+                    .admin()
+                    .cluster()
+                    .prepareGetTask(taskId)
+                    .get()
+                    .getTask()
+                    .getTask();
+        } catch (ResourceNotFoundException e) {
+            // Finished since the last poll
+            return taskId;
+        } catch (RuntimeException e) {
+            log.warn("Could not read the status of reindex task {} from {} to {}: {}", taskId, srcIndex, targetIndex, e.getMessage());
+            return taskId;
+        }
+        if (task.getStatus() instanceof BulkByScrollTask.Status) {
+            BulkByScrollTask.Status status = (BulkByScrollTask.Status) task.getStatus();
+            if (status.getReasonCancelled() != null) {
+                log.warn("Reindex task {} from {} to {} was cancelled: {}", taskId, srcIndex, targetIndex, status.getReasonCancelled());
+            }
+            if (copyListener != null) {
+                copyListener.progress(status.getCreated() + status.getUpdated(), status.getTotal());
+            }
+        }
+        return taskId;
+    }
+
+    private void cancel(TaskId taskId, String opaqueId) {
+        try {
+            if (taskId == null) {
+                taskId = findTask(opaqueId);
+                if (taskId == null) {
+                    return;
+                }
+            }
+            esClient.getClient()
+                    .admin()
+                    .cluster()
+                    .prepareCancelTasks()
+                    .setTaskId(taskId)
+                    .get();
+            log.info("Cancelled reindex task {} from {} to {}", taskId, srcIndex, targetIndex);
+        } catch (RuntimeException e) {
+            log.warn("Could not cancel reindex task {} from {} to {}: {}", taskId, srcIndex, targetIndex, e.getMessage());
+        }
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Number of slices for the reindex task. Defaults to automatic slicing (one slice per shard).
+     */
+    public void setSlices(int slices) {
+        this.slices = slices;
+    }
+
+    public float getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * Throttles the reindex to this many documents per second. Unlimited by default.
+     */
+    public void setRequestsPerSecond(float requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    public TimeValue getPollInterval() {
+        return pollInterval;
+    }
+
+    public void setPollInterval(TimeValue pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public QueryBuilder getQuery() {
+        return query;
+    }
+
+    /**
+     * Copies only the documents matching this query
+     */
+    public void setQuery(QueryBuilder query) {
+        this.query = query;
+    }
+
+    public boolean isPreserveVersions() {
+        return preserveVersions;
+    }
+
+    /**
+     * Indexes the copies with external versioning, using the version of the source documents. Copies that are
+     * older than (or the same as) the document in the target index are skipped.
+     */
+    public void setPreserveVersions(boolean preserveVersions) {
+        this.preserveVersions = preserveVersions;
+    }
+
+    public DataCopy.CopyListener getCopyListener() {
+        return copyListener;
+    }
+
+    public void setCopyListener(DataCopy.CopyListener copyListener) {
+        this.copyListener = copyListener;
+    }
+}
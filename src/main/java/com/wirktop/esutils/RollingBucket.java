@@ -0,0 +1,266 @@
+package com.wirktop.esutils;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A bucket for time-based data (logs, events, etc.) spread over a series of indices named
+ * {@code <name>-<yyyy.MM.dd>-<sequence>}. Documents are written through the {@code <name>} alias, which always points
+ * to the latest index, while searches cover all of them, through the {@code <name>-search} alias, or, with
+ * {@link #searchBucket(Admin, long, long)}, only the ones overlapping a time range.
+ * <p>
+ * {@link #rollover(Admin)} is meant to be called periodically: it starts a new index when a new period (day, week,
+ * month) begins or when the current index has reached a number of documents. {@link #applyRetention(Admin)} drops
+ * whole indices once they're older than the retention period.
+ * <p>
+ * An index is considered to hold the documents written between its creation and the creation of the next one, so
+ * time ranges are matched against that, rather than the actual content of the documents.
+ * <p>
+ * Gets by id ({@link com.wirktop.esutils.search.Search#getDocument(String)}, getMany, explain, etc.) need a single
+ * index, so they go through the write alias and only find the documents in the current index. To look up a document
+ * in any of the indices, search the bucket with an ids query instead.
+ *
+ * @author Cosmin Marginean
+ */
+public class RollingBucket extends DataBucket {
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy.MM.dd");
+    private static final String SEARCH_ALIAS_SUFFIX = "-search";
+
+    private final Period period;
+    private final Pattern indexPattern;
+    private long maxDocs;
+    private TimeValue retention;
+
+    public RollingBucket(String name, Period period) {
+        super(name);
+        if (period == null) {
+            throw new IllegalArgumentException("period argument cannot be null");
+        }
+        this.period = period;
+        this.indexPattern = Pattern.compile(Pattern.quote(name) + "-(\\d{4}\\.\\d{2}\\.\\d{2})-(\\d{6,})");
+    }
+
+    /**
+     * The search alias rather than a wildcard, which would also match other indices sharing the name prefix
+     */
+    @Override
+    public String[] getIndices() {
+        return new String[]{getSearchAlias()};
+    }
+
+    @Override
+    public void createIndex(Admin admin, int shards) {
+        if (!admin.aliasExists(getIndex())) {
+            String index = indexName(periodStart(), 1);
+            admin.createIndex(index, shards);
+            admin.createAlias(getIndex(), index);
+            admin.createAlias(getSearchAlias(), index);
+        }
+    }
+
+    /**
+     * Alias pointing to all the indices of this bucket
+     */
+    public String getSearchAlias() {
+        return getIndex() + SEARCH_ALIAS_SUFFIX;
+    }
+
+    /**
+     * Moves the write alias to a new index if a new period has started or if the current index has reached
+     * {@link #getMaxDocs()}. The new index gets the same number of shards as the current one.
+     *
+     * @return true if a new index was created
+     */
+    public boolean rollover(Admin admin) {
+        String current = currentIndex(admin);
+        if (current == null) {
+            createIndex(admin);
+            return true;
+        }
+        Matcher matcher = indexPattern.matcher(current);
+        if (!matcher.matches()) {
+            throw new SearchException(String.format("Alias %s points to %s, which is not a rolling index", getIndex(), current));
+        }
+        LocalDate currentStart = LocalDate.parse(matcher.group(1), DATE_FORMAT);
+        LocalDate start = periodStart();
+        String next = indexName(start, Long.parseLong(matcher.group(2)) + 1);
+        int shards = admin.getShards(current);
+        if (period != Period.NONE && start.isAfter(currentStart)) {
+            return admin.rollover(getIndex(), next, 0, shards, getSearchAlias());
+        } else if (maxDocs > 0) {
+            return admin.rollover(getIndex(), next, maxDocs, shards, getSearchAlias());
+        }
+        return false;
+    }
+
+    /**
+     * Removes the indices whose documents were all written before now - {@link #getRetention()}. The current
+     * index is never removed.
+     *
+     * @return The indices removed
+     */
+    public List<String> applyRetention(Admin admin) {
+        List<String> removed = new ArrayList<>();
+        if (retention == null) {
+            return removed;
+        }
+        long cutoff = System.currentTimeMillis() - retention.millis();
+        List<RollingIndex> indices = indices(admin);
+        for (int i = 0; i < indices.size() - 1; i++) {
+            if (indices.get(i + 1).created < cutoff) {
+                admin.removeIndex(indices.get(i).name);
+                removed.add(indices.get(i).name);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * A bucket for searching only the indices that may hold documents from the given time range (epoch millis).
+     * The query still needs its own range filter, as the indices can also hold documents outside the range.
+     */
+    public DataBucket searchBucket(Admin admin, long from, long to) {
+        List<RollingIndex> indices = indices(admin);
+        List<String> overlapping = new ArrayList<>();
+        for (int i = 0; i < indices.size(); i++) {
+            // The first index covers everything before the second one was created, the last one everything after
+            boolean startsBefore = i == 0 || indices.get(i).created <= to;
+            boolean endsAfter = i == indices.size() - 1 || indices.get(i + 1).created >= from;
+            if (startsBefore && endsAfter) {
+                overlapping.add(indices.get(i).name);
+            }
+        }
+        if (overlapping.isEmpty()) {
+            return new DataBucket(getIndex());
+        }
+        return new IndicesBucket(getIndex(), overlapping);
+    }
+
+    /**
+     * The index the write alias currently points to
+     */
+    public String currentIndex(Admin admin) {
+        Collection<String> indices = admin.indicesForAlias(getIndex());
+        return indices.isEmpty() ? null : indices.iterator().next();
+    }
+
+    private List<RollingIndex> indices(Admin admin) {
+        Map<String, Long> creationDates = admin.getCreationDates(getSearchAlias());
+        List<RollingIndex> indices = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : creationDates.entrySet()) {
+            Matcher matcher = indexPattern.matcher(entry.getKey());
+            if (matcher.matches()) {
+                indices.add(new RollingIndex(entry.getKey(), Long.parseLong(matcher.group(2)), entry.getValue()));
+            }
+        }
+        // Numerically, as the sequence gets wider than its padding after 999999
+        indices.sort(Comparator.comparingLong(index -> index.sequence));
+        return indices;
+    }
+
+    private String indexName(LocalDate start, long sequence) {
+        return String.format("%s-%s-%06d", getIndex(), start.format(DATE_FORMAT), sequence);
+    }
+
+    /**
+     * Start of the current period (UTC), or today for size-capped indices
+     */
+    private LocalDate periodStart() {
+        return period.start(Instant.now().atZone(ZoneOffset.UTC).toLocalDate());
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public long getMaxDocs() {
+        return maxDocs;
+    }
+
+    /**
+     * Size cap for an index: {@link #rollover(Admin)} starts a new one once the current index has this many
+     * documents. Zero (the default) means no limit.
+     */
+    public void setMaxDocs(long maxDocs) {
+        this.maxDocs = maxDocs;
+    }
+
+    public TimeValue getRetention() {
+        return retention;
+    }
+
+    public void setRetention(TimeValue retention) {
+        this.retention = retention;
+    }
+
+    public enum Period {
+        NONE {
+            @Override
+            LocalDate start(LocalDate date) {
+                return date;
+            }
+        },
+        DAILY {
+            @Override
+            LocalDate start(LocalDate date) {
+                return date;
+            }
+        },
+        WEEKLY {
+            @Override
+            LocalDate start(LocalDate date) {
+                return date.with(DayOfWeek.MONDAY);
+            }
+        },
+        MONTHLY {
+            @Override
+            LocalDate start(LocalDate date) {
+                return date.withDayOfMonth(1);
+            }
+        };
+
+        abstract LocalDate start(LocalDate date);
+    }
+
+    private static class RollingIndex {
+        private final String name;
+        private final long sequence;
+        private final long created;
+
+        private RollingIndex(String name, long sequence, long created) {
+            this.name = name;
+            this.sequence = sequence;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Reads go to a subset of the rolling indices, writes and gets still go through the write alias
+     */
+    private static class IndicesBucket extends DataBucket {
+        private final String[] indices;
+
+        private IndicesBucket(String writeAlias, List<String> indices) {
+            super(writeAlias);
+            this.indices = indices.toArray(new String[0]);
+        }
+
+        @Override
+        public String[] getIndices() {
+            return indices;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.wirktop.esutils;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Replays a set of queries against an index, in rounds, until the time the cluster takes to run a round settles.
+ * This loads the filesystem cache, the query caches and the global ordinals of a new index before it gets live
+ * traffic.
+ *
+ * @author Cosmin Marginean
+ */
+public class Warmup {
+
+    private static final Logger log = LoggerFactory.getLogger(Warmup.class);
+    public static final int DEFAULT_MAX_ROUNDS = 10;
+    public static final double DEFAULT_TOLERANCE = 0.1;
+
+    private final ElasticClient esClient;
+    private final String index;
+    private final List<QueryBuilder> queries;
+    private int maxRounds = DEFAULT_MAX_ROUNDS;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int size = 10;
+
+    public Warmup(ElasticClient esClient, String index, Collection<QueryBuilder> queries) {
+        if (queries == null) {
+            throw new IllegalArgumentException("queries argument cannot be null");
+        }
+        this.esClient = esClient;
+        this.index = index;
+        this.queries = new ArrayList<>(queries);
+    }
+
+    /**
+     * @return The number of rounds run
+     */
+    public int run() {
+        if (queries.isEmpty()) {
+            return 0;
+        }
+        long previous = -1;
+        for (int round = 1; round <= maxRounds; round++) {
+            long took = 0;
+            for (QueryBuilder query : queries) {
+                SearchResponse response = esClient.getClient()
+                        .prepareSearch(index)
+                        .setQuery(query)
+                        .setSize(size)
+                        .get();
+                took += response.getTook().millis();
+            }
+            log.info("Warmup round {} for {} took {}ms for {} queries", round, index, took, queries.size());
+            if (previous >= 0 && Math.abs(took - previous) <= tolerance * previous) {
+                return round;
+            }
+            previous = took;
+        }
+        log.warn("Latency for {} did not settle after {} warmup rounds", index, maxRounds);
+        return maxRounds;
+    }
+
+    public int getMaxRounds() {
+        return maxRounds;
+    }
+
+    public void setMaxRounds(int maxRounds) {
+        this.maxRounds = maxRounds;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * The warmup stops when a round takes within this fraction of the previous round's time. Defaults to 0.1 (10%).
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of hits fetched for each query. Defaults to 10, like a typical search page.
+     */
+    public void setSize(int size) {
+        this.size = size;
+    }
+}
@@ -0,0 +1,160 @@
+package com.wirktop.esutils.index;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Arrays;
+
+/**
+ * Keeps resizing an {@link IndexBatch} (and optionally the number of concurrent bulk requests it sends) based on the
+ * observed bulk latency and rejections. The controller grows the batch while throughput improves and the p99 latency
+ * stays under the target, steps back when growing stops paying off, and shrinks it quickly when the cluster starts
+ * rejecting items or the latency goes over the target.
+ *
+ * @author Cosmin Marginean
+ */
+public class AdaptiveBatchSize {
+
+    public static final int DEFAULT_MIN_SIZE = 10;
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    private static final int WINDOW = 20;
+    private static final int HOLD_WINDOWS = 5;
+    private static final double GROWTH = 1.25;
+    private static final double BACKOFF = 0.75;
+
+    private final TimeValue targetLatency;
+    private final int minSize;
+    private final int maxSize;
+    private final int maxConcurrentRequests;
+
+    private int size;
+    private int concurrentRequests;
+    private final long[] latencies = new long[WINDOW];
+    private int samples;
+    private long windowItems;
+    private long windowStartNanos = System.nanoTime();
+    private double lastThroughput;
+    private int previousSize;
+    private int holdWindows;
+
+    public AdaptiveBatchSize(TimeValue targetLatency) {
+        this(targetLatency, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, 0);
+    }
+
+    /**
+     * @param targetLatency         The p99 bulk latency not to exceed
+     * @param minSize               Smallest batch size
+     * @param maxSize               Largest batch size
+     * @param maxConcurrentRequests Upper bound for the number of in-flight bulk requests, or 0 to send them
+     *                              synchronously
+     */
+    public AdaptiveBatchSize(TimeValue targetLatency, int minSize, int maxSize, int maxConcurrentRequests) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Batch size bounds must satisfy 0 < minSize <= maxSize");
+        }
+        if (maxConcurrentRequests < 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests argument cannot be negative");
+        }
+        this.targetLatency = targetLatency;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.size = minSize;
+        this.previousSize = minSize;
+        this.concurrentRequests = Math.min(1, maxConcurrentRequests);
+    }
+
+    /**
+     * Records a completed bulk request
+     *
+     * @param items         Number of items in the request
+     * @param latencyNanos  Time it took to complete, retries included
+     * @param rejectedItems Number of items rejected by the cluster (HTTP 429)
+     */
+    public synchronized void onBulk(int items, long latencyNanos, int rejectedItems) {
+        if (rejectedItems > 0) {
+            shrink();
+            return;
+        }
+        latencies[samples++] = latencyNanos;
+        windowItems += items;
+        if (samples < WINDOW) {
+            return;
+        }
+
+        double throughput = windowItems / (double) Math.max(1, System.nanoTime() - windowStartNanos);
+        if (p99() > targetLatency.nanos()) {
+            shrink();
+        } else if (holdWindows > 0) {
+            holdWindows--;
+            resetWindow();
+        } else if (size > previousSize && throughput < lastThroughput) {
+            // The last increase made things worse
+            size = previousSize;
+            holdWindows = HOLD_WINDOWS;
+            resetWindow();
+        } else {
+            grow();
+        }
+        lastThroughput = throughput;
+    }
+
+    private long p99() {
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(0.99 * sorted.length) - 1];
+    }
+
+    private void grow() {
+        previousSize = size;
+        if (size < maxSize) {
+            size = Math.min(maxSize, Math.max(size + 1, (int) (size * GROWTH)));
+        } else if (concurrentRequests < maxConcurrentRequests) {
+            concurrentRequests++;
+        }
+        resetWindow();
+    }
+
+    private void shrink() {
+        if (size > minSize) {
+            size = Math.max(minSize, (int) (size * BACKOFF));
+        } else if (concurrentRequests > 1) {
+            concurrentRequests--;
+        }
+        previousSize = size;
+        lastThroughput = 0;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        samples = 0;
+        windowItems = 0;
+        windowStartNanos = System.nanoTime();
+    }
+
+    public synchronized int batchSize() {
+        return size;
+    }
+
+    /**
+     * Current limit for in-flight bulk requests, 0 if they are sent synchronously
+     */
+    public synchronized int concurrentRequests() {
+        return concurrentRequests;
+    }
+
+    public TimeValue getTargetLatency() {
+        return targetLatency;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+}
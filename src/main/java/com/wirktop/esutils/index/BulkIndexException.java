@@ -0,0 +1,26 @@
+package com.wirktop.esutils.index;
+
+import com.wirktop.esutils.SearchException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * @author Cosmin Marginean
+ */
+public class BulkIndexException extends SearchException {
+
+    private final List<IndexFailure> failures;
+
+    public BulkIndexException(List<IndexFailure> failures) {
+        super("Could not index all documents. Error message is: " + failures.stream()
+                .map(IndexFailure::toString)
+                .collect(Collectors.joining("\n")));
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public List<IndexFailure> getFailures() {
+        return failures;
+    }
+}
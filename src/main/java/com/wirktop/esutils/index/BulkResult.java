@@ -0,0 +1,39 @@
+package com.wirktop.esutils.index;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Cosmin Marginean
+ */
+public class BulkResult {
+
+    private final int items;
+    private final int retriedItems;
+    private final List<IndexFailure> failures;
+
+    public BulkResult(int items, int retriedItems, List<IndexFailure> failures) {
+        this.items = items;
+        this.retriedItems = retriedItems;
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * How many item submissions were repeated because they had been rejected
+     */
+    public int getRetriedItems() {
+        return retriedItems;
+    }
+
+    public List<IndexFailure> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+}
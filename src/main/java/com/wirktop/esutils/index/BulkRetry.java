@@ -0,0 +1,98 @@
+package com.wirktop.esutils.index;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks a bulk request across retries. Each round only resubmits the items rejected in the previous one, while
+ * remembering their position in the original request so that failures can be reported against it.
+ *
+ * @author Cosmin Marginean
+ */
+class BulkRetry {
+
+    private final RetryPolicy policy;
+    private final int items;
+    private final List<IndexFailure> failures = new ArrayList<>();
+    private BulkRequest pending;
+    private int[] positions;
+    private int attempt;
+    private int retriedItems;
+
+    BulkRetry(BulkRequest request, RetryPolicy policy) {
+        this.policy = policy;
+        this.pending = request;
+        this.items = request.numberOfActions();
+        this.positions = new int[items];
+        for (int i = 0; i < items; i++) {
+            positions[i] = i;
+        }
+    }
+
+    BulkRequest pending() {
+        return pending;
+    }
+
+    TimeValue backoff() {
+        return policy.backoff(attempt - 1);
+    }
+
+    /**
+     * Records the outcome of the pending request.
+     *
+     * @return true if some of the items were rejected and should be resubmitted through {@link #pending()}
+     */
+    boolean onResponse(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return false;
+        }
+        boolean canRetry = attempt < policy.getMaxRetries();
+        BulkRequest retry = new BulkRequest()
+                .setRefreshPolicy(pending.getRefreshPolicy())
+                .timeout(pending.timeout());
+        List<Integer> retryPositions = new ArrayList<>();
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                DocWriteRequest<?> request = pending.requests().get(item.getItemId());
+                int position = positions[item.getItemId()];
+                BulkItemResponse.Failure failure = item.getFailure();
+                if (canRetry && policy.isRetryable(failure.getStatus())) {
+                    retry.add(request);
+                    retryPositions.add(position);
+                } else {
+                    failures.add(new IndexFailure(position, request, failure.getStatus(), failure.getMessage(), failure.getCause()));
+                }
+            }
+        }
+        if (retryPositions.isEmpty()) {
+            return false;
+        }
+        pending = retry;
+        positions = retryPositions.stream().mapToInt(Integer::intValue).toArray();
+        retriedItems += positions.length;
+        attempt++;
+        return true;
+    }
+
+    /**
+     * @return true if the whole request was rejected and should be resubmitted
+     */
+    boolean onFailure(Exception e) {
+        if (attempt < policy.getMaxRetries() && policy.isRetryable(e)) {
+            retriedItems += positions.length;
+            attempt++;
+            return true;
+        }
+        return false;
+    }
+
+    BulkResult result() {
+        return new BulkResult(items, retriedItems, failures);
+    }
+}
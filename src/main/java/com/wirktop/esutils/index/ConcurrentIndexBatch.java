@@ -0,0 +1,116 @@
+package com.wirktop.esutils.index;
+
+import com.wirktop.esutils.Json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An {@link IndexBatch} meant to be shared by many producer threads. Operations are first buffered in a number of
+ * stripes, each with its own lock, and only handed over to the shared buffer in chunks, so producers contend on the
+ * batch lock once per chunk rather than once per document. The shared buffer still sends full-size bulk requests.
+ * <p>
+ * Operations for the same id always go through the same stripe, so their order is preserved.
+ *
+ * @author Cosmin Marginean
+ */
+public class ConcurrentIndexBatch extends IndexBatch {
+
+    private final List<Stripe> stripes;
+
+    protected ConcurrentIndexBatch(Indexer indexer, Json json, int size, int concurrentRequests, int stripes) {
+        super(indexer, json, size, concurrentRequests);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes argument must be positive");
+        }
+        this.stripes = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            this.stripes.add(new Stripe());
+        }
+    }
+
+    @Override
+    void enqueue(Operation operation) {
+        String id = operation.id();
+        int index = id != null
+                ? Math.floorMod(id.hashCode(), stripes.size())
+                : ThreadLocalRandom.current().nextInt(stripes.size());
+        stripes.get(index).add(operation);
+    }
+
+    @Override
+    void flushLingering() {
+        handOffAll();
+        super.flushLingering();
+    }
+
+    @Override
+    public void close() {
+        handOffAll();
+        super.close();
+    }
+
+    private void handOffAll() {
+        for (Stripe stripe : stripes) {
+            stripe.handOff();
+        }
+    }
+
+    private int chunkSize() {
+        return Math.max(1, batchSize() / stripes.size());
+    }
+
+    public int getStripes() {
+        return stripes.size();
+    }
+
+    private class Stripe {
+        private List<Operation> chunk = new ArrayList<>();
+        private final Queue<List<Operation>> fullChunks = new ConcurrentLinkedQueue<>();
+
+        private void add(Operation operation) {
+            boolean full;
+            synchronized (this) {
+                chunk.add(operation);
+                full = chunk.size() >= chunkSize();
+                if (full) {
+                    swap();
+                }
+            }
+            if (full) {
+                handOffChunks();
+            }
+        }
+
+        private void handOff() {
+            synchronized (this) {
+                swap();
+            }
+            handOffChunks();
+        }
+
+        private void swap() {
+            if (!chunk.isEmpty()) {
+                fullChunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Chunks from the same stripe reach the batch in the order they were swapped out, and the bulk requests
+         * are sent after releasing both the stripe and the batch locks
+         */
+        private void handOffChunks() {
+            synchronized (fullChunks) {
+                List<Operation> operations;
+                while ((operations = fullChunks.poll()) != null) {
+                    buffer(operations);
+                }
+            }
+            sendDrained();
+        }
+    }
+}
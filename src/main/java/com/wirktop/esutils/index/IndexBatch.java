@@ -2,51 +2,574 @@ package com.wirktop.esutils.index;
 
 import com.wirktop.esutils.Document;
 import com.wirktop.esutils.Json;
+import com.wirktop.esutils.SearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * @author Cosmin Marginean
  */
 public class IndexBatch implements AutoCloseable {
 
+    private static final Logger log = LoggerFactory.getLogger(IndexBatch.class);
+
     private Indexer indexer;
     private Json json;
-    private List<Document> documents = new ArrayList<>();
+    private List<Operation> operations = new ArrayList<>();
     private int size;
+    private long maxBytes;
+    private long pendingBytes;
+    private TimeValue flushInterval;
+    private long firstPendingNanos;
+    private ScheduledExecutorService scheduler;
+    private int concurrentRequests;
+    private final Object inFlightLock = new Object();
+    private int inFlightCount;
+    private AdaptiveBatchSize adaptiveBatchSize;
+    private final List<IndexFailure> failures = Collections.synchronizedList(new ArrayList<>());
     private IndexListener indexListener;
+    private boolean coalesce;
+    private final Map<String, Integer> pendingById = new HashMap<>();
+    private long coalescedWrites;
+    private Spool spool;
+    private final Queue<List<Operation>> drained = new ConcurrentLinkedQueue<>();
+    private final Object sendLock = new Object();
 
     protected IndexBatch(Indexer indexer, Json json, int size) {
+        this(indexer, json, size, 0);
+    }
+
+    protected IndexBatch(Indexer indexer, Json json, int size, int concurrentRequests) {
+        if (concurrentRequests < 0) {
+            throw new IllegalArgumentException("concurrentRequests argument cannot be negative");
+        }
         this.indexer = indexer;
         this.json = json;
         this.size = size;
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    protected IndexBatch(Indexer indexer, Json json, AdaptiveBatchSize adaptiveBatchSize) {
+        this(indexer, json, adaptiveBatchSize.getMaxSize(), adaptiveBatchSize.getMaxConcurrentRequests());
+        this.adaptiveBatchSize = adaptiveBatchSize;
     }
 
     public void addPojo(String id, Object pojo) {
-        add(id, json.toString(pojo));
+        add(new Document(id, json.toBytesRef(pojo)));
     }
 
     public void add(String id, String documentJson) {
-        documents.add(new Document(id, documentJson));
-        if (documents.size() == size) {
-            bulkIndex();
+        add(new Document(id, documentJson));
+    }
+
+    public void add(Document document) {
+        enqueue(new Operation(document, null, document.sourceLength()));
+    }
+
+    /**
+     * Adds an update built with {@link Indexer#updateRequest(String)}, which can carry its own version,
+     * retryOnConflict, upsert, etc.
+     */
+    public void update(UpdateRequest request) {
+        enqueue(new Operation(null, request, sizeOf(request)));
+    }
+
+    public void updateDoc(String id, String docJson) {
+        updateDoc(id, docJson, 0);
+    }
+
+    public void updateDoc(String id, String docJson, long version) {
+        update(indexer.docUpdateRequest(id, docJson, version));
+    }
+
+    public void updateField(String id, String field, Object value) {
+        updateField(id, field, value, 0);
+    }
+
+    public void updateField(String id, String field, Object value, long version) {
+        update(indexer.fieldUpdateRequest(id, field, value, version));
+    }
+
+    /**
+     * Partial update of the document, which is created from docJson if it doesn't exist
+     */
+    public void upsert(String id, String docJson) {
+        update(indexer.upsertRequest(id, docJson));
+    }
+
+    public void updateScript(String id, String painlessScript, Map<String, Object> params) {
+        updateScript(id, painlessScript, params, 0L);
+    }
+
+    public void updateScript(String id, String painlessScript, Map<String, Object> params, long version) {
+        update(indexer.scriptUpdateRequest(id, painlessScript, params, version, 0));
+    }
+
+    public void updateScriptRetry(String id, String painlessScript, Map<String, Object> params, int retryCount) {
+        update(indexer.scriptUpdateRequest(id, painlessScript, params, 0, retryCount));
+    }
+
+    public void delete(String id) {
+        delete(id, 0);
+    }
+
+    public void delete(String id, long version) {
+        enqueue(new Operation(null, indexer.deleteRequest(id, version), 0));
+    }
+
+    void enqueue(Operation operation) {
+        enqueueAll(Collections.singletonList(operation));
+    }
+
+    void enqueueAll(List<Operation> batch) {
+        buffer(batch);
+        sendDrained();
+    }
+
+    /**
+     * Adds the operations to the buffer, and queues it for sending whenever it's full. The bulk requests
+     * are sent by {@link #sendDrained()}, outside the batch lock.
+     */
+    synchronized void buffer(List<Operation> batch) {
+        for (Operation operation : batch) {
+            if (operations.isEmpty()) {
+                firstPendingNanos = System.nanoTime();
+            }
+            if (!coalesce || !coalesce(operation)) {
+                if (coalesce && operation.id() != null) {
+                    pendingById.put(operation.id(), operations.size());
+                }
+                operations.add(operation);
+                pendingBytes += operation.size;
+            }
+            if (operations.size() >= batchSize() || (maxBytes > 0 && pendingBytes >= maxBytes)) {
+                drained.add(drain());
+            }
+        }
+    }
+
+    /**
+     * Folds the operation into the pending one for the same id, if the outcome is the same as sending both.
+     * Unversioned index and delete operations replace the previous write, while partial doc updates are merged
+     * into the previous doc update or document. Scripts and versioned operations are always sent as they are, and
+     * nothing is folded into a pending versioned operation.
+     */
+    private boolean coalesce(Operation operation) {
+        Integer position = operation.id() != null ? pendingById.get(operation.id()) : null;
+        if (position == null || operation.versioned()) {
+            return false;
+        }
+        Operation previous = operations.get(position);
+        if (previous.versioned()) {
+            // The versioned write has to reach the cluster, and may fail
+            return false;
+        }
+        Operation replacement;
+        if (operation.document != null || operation.request instanceof DeleteRequest) {
+            replacement = operation;
+        } else if (isDocUpdate(operation.request)) {
+            UpdateRequest update = (UpdateRequest) operation.request;
+            if (previous.document != null) {
+                replacement = mergeIntoDocument(previous.document, update);
+            } else if (isDocUpdate(previous.request) && (((UpdateRequest) previous.request).docAsUpsert() || !update.docAsUpsert())) {
+                replacement = mergeUpdates((UpdateRequest) previous.request, update);
+            } else {
+                return false;
+            }
+        } else {
+            return false;
+        }
+        operations.set(position, replacement);
+        pendingBytes += replacement.size - previous.size;
+        coalescedWrites++;
+        return true;
+    }
+
+    private static boolean isDocUpdate(DocWriteRequest<?> request) {
+        if (!(request instanceof UpdateRequest)) {
+            return false;
         }
+        UpdateRequest update = (UpdateRequest) request;
+        return update.doc() != null && update.script() == null && update.upsertRequest() == null;
+    }
+
+    private Operation mergeIntoDocument(Document document, UpdateRequest update) {
+        XContentType contentType = document.getContentType();
+        Map<String, Object> source = XContentHelper.convertToMap(document.getSourceRef(), true, contentType).v2();
+        XContentHelper.update(source, sourceAsMap(update.doc()), false);
+        try {
+            Document merged = new Document(document.getId(), BytesReference.bytes(XContentFactory.contentBuilder(contentType).map(source)));
+            return new Operation(merged, null, merged.sourceLength());
+        } catch (IOException e) {
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    private Operation mergeUpdates(UpdateRequest previous, UpdateRequest update) {
+        Map<String, Object> doc = sourceAsMap(previous.doc());
+        XContentHelper.update(doc, sourceAsMap(update.doc()), false);
+        UpdateRequest merged = indexer.updateRequest(update.id())
+                .doc(doc, previous.doc().getContentType())
+                .docAsUpsert(previous.docAsUpsert())
+                .retryOnConflict(Math.max(previous.retryOnConflict(), update.retryOnConflict()));
+        return new Operation(null, merged, sizeOf(merged));
+    }
+
+    private static Map<String, Object> sourceAsMap(IndexRequest request) {
+        return XContentHelper.convertToMap(request.source(), true, request.getContentType()).v2();
     }
 
     @Override
     public void close() {
-        if (documents.size() > 0) {
-            bulkIndex();
+        ScheduledExecutorService lingering;
+        synchronized (this) {
+            lingering = scheduler;
+            scheduler = null;
+        }
+        if (lingering != null) {
+            stop(lingering);
+        }
+        synchronized (this) {
+            if (operations.size() > 0) {
+                drained.add(drain());
+            }
+        }
+        sendDrained();
+        if (concurrentRequests > 0) {
+            awaitInFlight();
+        }
+        List<IndexFailure> thrown;
+        synchronized (failures) {
+            thrown = new ArrayList<>(failures);
+            failures.clear();
+        }
+        if (!thrown.isEmpty()) {
+            throw new BulkIndexException(thrown);
+        }
+    }
+
+    /**
+     * Sends the drained buffers in the order they were drained, one at a time
+     */
+    void sendDrained() {
+        synchronized (sendLock) {
+            List<Operation> batch;
+            while ((batch = drained.poll()) != null) {
+                send(batch);
+            }
+        }
+    }
+
+    private List<Operation> drain() {
+        List<Operation> batch = operations;
+        operations = new ArrayList<>();
+        pendingBytes = 0;
+        pendingById.clear();
+        return batch;
+    }
+
+    private BulkRequest bulkRequest(List<Operation> batch) {
+        BulkRequest request = new BulkRequest();
+        for (Operation operation : batch) {
+            request.add(request(operation));
+        }
+        return request;
+    }
+
+    private DocWriteRequest<?> request(Operation operation) {
+        return operation.request != null
+                ? operation.request
+                : indexer.indexRequest(operation.document);
+    }
+
+    private void send(List<Operation> batch) {
+        if (spool != null) {
+            spool.append(batch.stream()
+                    .map(this::request)
+                    .collect(Collectors.toList()));
+        } else if (concurrentRequests > 0) {
+            bulkIndexAsync(batch);
+        } else {
+            long start = System.nanoTime();
+            BulkResult result = indexer.bulk(bulkRequest(batch));
+            recordBulk(batch.size(), start, result);
+            notifyListener(batch, result.getFailures());
+            if (result.hasFailures()) {
+                throw new BulkIndexException(result.getFailures());
+            }
         }
     }
 
-    private void bulkIndex() {
-        indexer.bulkIndex(documents);
+    void flushLingering() {
+        synchronized (this) {
+            if (!operations.isEmpty() && flushInterval != null && System.nanoTime() - firstPendingNanos >= flushInterval.nanos()) {
+                drained.add(drain());
+            }
+        }
+        synchronized (sendLock) {
+            List<Operation> batch;
+            while ((batch = drained.poll()) != null) {
+                try {
+                    send(batch);
+                } catch (BulkIndexException e) {
+                    failures.addAll(e.getFailures());
+                } catch (RuntimeException e) {
+                    log.error(e.getMessage(), e);
+                    failures.addAll(failAll(batch, e));
+                }
+            }
+        }
+    }
+
+    private void bulkIndexAsync(List<Operation> batch) {
+        acquireSlot();
+        long start = System.nanoTime();
+        try {
+            indexer.bulkAsync(bulkRequest(batch), new ActionListener<BulkResult>() {
+                @Override
+                public void onResponse(BulkResult result) {
+                    try {
+                        recordBulk(batch.size(), start, result);
+                        failures.addAll(result.getFailures());
+                        notifyListener(batch, result.getFailures());
+                    } finally {
+                        releaseSlot();
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    try {
+                        List<IndexFailure> batchFailures = failAll(batch, e);
+                        recordBulk(batch.size(), start, new BulkResult(batch.size(), 0, batchFailures));
+                        failures.addAll(batchFailures);
+                        notifyListener(Collections.emptyList(), batchFailures);
+                    } finally {
+                        releaseSlot();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            releaseSlot();
+            throw e;
+        }
+    }
+
+    int batchSize() {
+        return adaptiveBatchSize != null ? adaptiveBatchSize.batchSize() : size;
+    }
+
+    private int concurrentRequestsLimit() {
+        return adaptiveBatchSize != null ? adaptiveBatchSize.concurrentRequests() : concurrentRequests;
+    }
+
+    private void acquireSlot() {
+        synchronized (inFlightLock) {
+            try {
+                while (inFlightCount >= concurrentRequestsLimit()) {
+                    inFlightLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SearchException("Interrupted while waiting for in-flight bulk requests", e);
+            }
+            inFlightCount++;
+        }
+    }
+
+    private void releaseSlot() {
+        synchronized (inFlightLock) {
+            inFlightCount--;
+            inFlightLock.notifyAll();
+        }
+    }
+
+    private void awaitInFlight() {
+        boolean interrupted = false;
+        synchronized (inFlightLock) {
+            while (inFlightCount > 0) {
+                try {
+                    inFlightLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordBulk(int items, long startNanos, BulkResult result) {
+        if (adaptiveBatchSize != null) {
+            int rejected = result.getRetriedItems() + (int) result.getFailures()
+                    .stream()
+                    .filter((failure) -> failure.getStatus() == RestStatus.TOO_MANY_REQUESTS)
+                    .count();
+            adaptiveBatchSize.onBulk(items, System.nanoTime() - startNanos, rejected);
+        }
+    }
+
+    private void notifyListener(List<Operation> batch, List<IndexFailure> batchFailures) {
         if (indexListener != null) {
-            indexListener.documentsIndexed(documents);
+            Set<Integer> failed = batchFailures.stream()
+                    .map(IndexFailure::getPosition)
+                    .collect(Collectors.toSet());
+            List<Document> indexed = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.get(i).document != null && !failed.contains(i)) {
+                    indexed.add(batch.get(i).document);
+                }
+            }
+            if (!indexed.isEmpty()) {
+                indexListener.documentsIndexed(indexed);
+            }
+            if (!batchFailures.isEmpty()) {
+                indexListener.documentsFailed(batchFailures);
+            }
+        }
+    }
+
+    private static List<IndexFailure> failAll(List<Operation> batch, Exception e) {
+        List<IndexFailure> batchFailures = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            batchFailures.add(new IndexFailure(i, batch.get(i).id(), ExceptionsHelper.status(e), e.getMessage(), e));
+        }
+        return batchFailures;
+    }
+
+    private static long sizeOf(UpdateRequest request) {
+        long size = 0;
+        if (request.doc() != null) {
+            size += sizeOf(request.doc());
+        }
+        if (request.upsertRequest() != null) {
+            size += sizeOf(request.upsertRequest());
+        }
+        if (request.script() != null) {
+            size += request.script().getIdOrCode().length();
+        }
+        return size;
+    }
+
+    private static long sizeOf(IndexRequest request) {
+        return request.source() != null ? request.source().length() : 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Triggers a bulk request as soon as the accumulated document sources reach this many bytes,
+     * even if the batch size hasn't been reached. Zero disables the byte threshold.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public TimeValue getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Bounds the time a document can wait in the buffer: pending documents are sent once the oldest
+     * of them has been waiting for longer than the interval, regardless of the batch size.
+     */
+    public void setFlushInterval(TimeValue flushInterval) {
+        ScheduledExecutorService previous;
+        synchronized (this) {
+            previous = scheduler;
+            scheduler = null;
+            this.flushInterval = flushInterval;
+            if (flushInterval != null && flushInterval.millis() > 0) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "esutils-index-batch-flush");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long period = Math.max(1, flushInterval.millis() / 4);
+                scheduler.scheduleWithFixedDelay(this::flushLingering, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+        // Outside the batch lock, which a running flushLingering() may be waiting for
+        if (previous != null) {
+            stop(previous);
+        }
+    }
+
+    /**
+     * Lets a running flush complete, rather than interrupting it after it has drained the buffer
+     */
+    private static void stop(ScheduledExecutorService scheduler) {
+        scheduler.shutdown();
+        try {
+            while (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Still waiting for a lingering flush to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        documents.clear();
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    /**
+     * When enabled, repeated writes for the same id within a batch are collapsed into a single bulk item (see
+     * {@link #getCoalescedWrites()}). Documents replaced this way are not passed to the {@link IndexListener}.
+     */
+    public synchronized void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+        pendingById.clear();
+    }
+
+    /**
+     * Number of writes that were folded into a pending operation for the same id, rather than sent
+     */
+    public synchronized long getCoalescedWrites() {
+        return coalescedWrites;
+    }
+
+    public Spool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Sends the bulk requests to a spool rather than to the cluster, so that adding documents never waits for it.
+     * The spool isn't closed with the batch, and the {@link IndexListener} isn't notified for spooled operations.
+     */
+    public synchronized void setSpool(Spool spool) {
+        this.spool = spool;
     }
 
     public IndexListener getIndexListener() {
@@ -57,7 +580,35 @@ public class IndexBatch implements AutoCloseable {
         this.indexListener = indexListener;
     }
 
+    /**
+     * A pending bulk item: either a document to be indexed, or an update/delete request
+     */
+    static class Operation {
+        private final Document document;
+        private final DocWriteRequest<?> request;
+        private final long size;
+
+        private Operation(Document document, DocWriteRequest<?> request, long size) {
+            this.document = document;
+            this.request = request;
+            this.size = size;
+        }
+
+        String id() {
+            return document != null ? document.getId() : request.id();
+        }
+
+        private boolean versioned() {
+            return document != null
+                    ? document.getVersion() > 0
+                    : request.version() != Versions.MATCH_ANY;
+        }
+    }
+
     public static interface IndexListener {
         void documentsIndexed(List<Document> documents);
+
+        default void documentsFailed(List<IndexFailure> failures) {
+        }
     }
 }
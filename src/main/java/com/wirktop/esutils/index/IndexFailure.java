@@ -0,0 +1,69 @@
+package com.wirktop.esutils.index;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * A bulk item that could not be written, either because the failure was permanent (mapping errors, version
+ * conflicts, etc.) or because it was still being rejected after all retries.
+ *
+ * @author Cosmin Marginean
+ */
+public class IndexFailure {
+
+    private final int position;
+    private final String id;
+    private final RestStatus status;
+    private final String message;
+    private final Exception cause;
+    private final DocWriteRequest<?> request;
+
+    public IndexFailure(int position, DocWriteRequest<?> request, RestStatus status, String message, Exception cause) {
+        this(position, request, request.id(), status, message, cause);
+    }
+
+    public IndexFailure(int position, String id, RestStatus status, String message, Exception cause) {
+        this(position, null, id, status, message, cause);
+    }
+
+    private IndexFailure(int position, DocWriteRequest<?> request, String id, RestStatus status, String message, Exception cause) {
+        this.position = position;
+        this.request = request;
+        this.id = id;
+        this.status = status;
+        this.message = message;
+        this.cause = cause;
+    }
+
+    /**
+     * The position of the item in the original bulk request, or -1 if it failed before being added to one
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public RestStatus getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Exception getCause() {
+        return cause;
+    }
+
+    public DocWriteRequest<?> getRequest() {
+        return request;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s]: %s", position, message);
+    }
+}
@@ -1,9 +1,13 @@
 package com.wirktop.esutils.index;
 
 import com.wirktop.esutils.*;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.support.WriteRequest;
@@ -14,10 +18,14 @@ import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryAction;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.threadpool.ThreadPool;
 
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * @author Cosmin Marginean
@@ -29,6 +37,7 @@ public class Indexer {
 
     private final ElasticClient esClient;
     private final DataBucket bucket;
+    private RetryPolicy retryPolicy = RetryPolicy.NONE;
 
     public Indexer(ElasticClient esClient, DataBucket bucket) {
         this.esClient = esClient;
@@ -44,7 +53,7 @@ public class Indexer {
     }
 
     public String indexObject(String id, Object doc, boolean refresh) {
-        return indexJson(id, json().toString(doc), refresh);
+        return indexDocument(new Document(id, json().toBytesRef(doc)), refresh);
     }
 
     public String indexJson(String jsonDocument) {
@@ -60,12 +69,7 @@ public class Indexer {
     }
 
     public void updateScriptRetry(String id, String painlessScript, Map<String, Object> params, int retryCount) {
-        UpdateRequest request = updateRequest(id)
-                .script(new Script(ScriptType.INLINE, "painless", painlessScript, params));
-        if (retryCount > 0) {
-            request = request.retryOnConflict(retryCount);
-        }
-        update(request);
+        update(scriptUpdateRequest(id, painlessScript, params, 0, retryCount));
     }
 
     public void updateScript(String id, String painlessScript, Map<String, Object> params) {
@@ -73,22 +77,12 @@ public class Indexer {
     }
 
     public void updateScript(String id, String painlessScript, Map<String, Object> params, long version) {
-        UpdateRequest request = updateRequest(id)
-                .script(new Script(ScriptType.INLINE, "painless", painlessScript, params));
-        if (version > 0) {
-            request = request.version(version);
-        }
-        update(request);
+        update(scriptUpdateRequest(id, painlessScript, params, version, 0));
     }
 
 
     public void updateDoc(String id, String docJsonStr, long version) {
-        UpdateRequest request = updateRequest(id)
-                .doc(docJsonStr, XContentType.JSON);
-        if (version > 0) {
-            request = request.version(version);
-        }
-        update(request);
+        update(docUpdateRequest(id, docJsonStr, version));
     }
 
     public void updateField(String id, String field, Object value) {
@@ -96,16 +90,57 @@ public class Indexer {
     }
 
     public void updateField(String id, String field, Object value, long version) {
-        UpdateRequest request = updateRequest(id)
-                .doc(Collections.singletonMap(field, value));
+        update(fieldUpdateRequest(id, field, value, version));
+    }
+
+    public UpdateRequest updateRequest(String id) {
+        return new UpdateRequest(bucket.getIndex(), DEFAULTTYPE, id);
+    }
+
+    public DeleteRequest deleteRequest(String id) {
+        return new DeleteRequest(bucket.getIndex(), DEFAULTTYPE, id);
+    }
+
+    /*
+     * Request builders shared with IndexBatch. A zero version or retryCount leaves the request's default.
+     */
+
+    UpdateRequest docUpdateRequest(String id, String docJson, long version) {
+        return versioned(updateRequest(id).doc(docJson, XContentType.JSON), version);
+    }
+
+    UpdateRequest fieldUpdateRequest(String id, String field, Object value, long version) {
+        return versioned(updateRequest(id).doc(Collections.singletonMap(field, value)), version);
+    }
+
+    /**
+     * Partial update of the document, which is created from docJson if it doesn't exist
+     */
+    UpdateRequest upsertRequest(String id, String docJson) {
+        return updateRequest(id)
+                .doc(docJson, XContentType.JSON)
+                .docAsUpsert(true);
+    }
+
+    UpdateRequest scriptUpdateRequest(String id, String painlessScript, Map<String, Object> params, long version, int retryCount) {
+        UpdateRequest request = versioned(updateRequest(id)
+                .script(new Script(ScriptType.INLINE, "painless", painlessScript, params)), version);
+        if (retryCount > 0) {
+            request = request.retryOnConflict(retryCount);
+        }
+        return request;
+    }
+
+    DeleteRequest deleteRequest(String id, long version) {
+        DeleteRequest request = deleteRequest(id);
         if (version > 0) {
             request = request.version(version);
         }
-        update(request);
+        return request;
     }
 
-    public UpdateRequest updateRequest(String id) {
-        return new UpdateRequest(bucket.getIndex(), DEFAULTTYPE, id);
+    private static UpdateRequest versioned(UpdateRequest request, long version) {
+        return version > 0 ? request.version(version) : request;
     }
 
     public void update(UpdateRequest request) {
@@ -141,24 +176,124 @@ public class Indexer {
         if (document.getVersion() > 0) {
             request.setVersion(document.getVersion());
         }
-        request = request.setSource(document.getSource(), XContentType.JSON);
+        request = request.setSource(document.getSourceRef(), document.getContentType());
         IndexResponse response = request.execute().actionGet();
         return response.getId();
     }
 
     public void bulkIndex(Collection<Document> documents) {
         if (documents != null) {
-            BulkRequestBuilder request = esClient.getClient().prepareBulk();
-            for (Document document : documents) {
-                IndexRequestBuilder indexRequest = prepareIndex();
-                if (document.getId() != null) {
-                    indexRequest.setId(document.getId());
+            doBulkIndex(bulkRequest(documents));
+        }
+    }
+
+    public void bulkIndex(Stream<Document> documents, int parallelism) {
+        bulkIndex(documents, parallelism, false);
+    }
+
+    /**
+     * Indexes a stream in bulk requests of the default batch size, submitted concurrently by
+     * {@code parallelism} worker threads.
+     *
+     * @param preserveOrder If true, all the documents with the same id are sent by the same worker, in stream order,
+     *                      so that the last one in the stream is the one that ends up in the index
+     */
+    public void bulkIndex(Stream<Document> documents, int parallelism, boolean preserveOrder) {
+        new ParallelBulk<Document>(this, Function.identity(), Document::getId, parallelism, DEFAULT_BATCH_SIZE, preserveOrder)
+                .index(documents);
+    }
+
+    /**
+     * Same as {@link #bulkIndex(Stream, int, boolean)}, with the POJOs being serialized by the worker threads
+     */
+    public <T> void bulkIndexObjects(Stream<T> objects, Function<T, String> idFunction, int parallelism, boolean preserveOrder) {
+        Json json = json();
+        Function<T, Document> toDocument = (object) -> new Document(idFunction.apply(object), json.toBytesRef(object));
+        new ParallelBulk<>(this, toDocument, idFunction, parallelism, DEFAULT_BATCH_SIZE, preserveOrder)
+                .index(objects);
+    }
+
+    public void bulkIndexAsync(Collection<Document> documents, ActionListener<BulkResult> listener) {
+        bulkAsync(bulkRequest(documents), listener);
+    }
+
+    /**
+     * Executes a bulk request, resubmitting rejected items according to the {@link RetryPolicy} of this indexer.
+     * Items that failed permanently are returned in the result rather than thrown.
+     */
+    public BulkResult bulk(BulkRequest request) {
+        BulkRetry retry = new BulkRetry(request, retryPolicy);
+        while (true) {
+            boolean again;
+            try {
+                again = retry.onResponse(esClient.getClient().bulk(retry.pending()).actionGet());
+            } catch (RuntimeException e) {
+                if (!retry.onFailure(e)) {
+                    throw e;
                 }
-                indexRequest = indexRequest.setSource(document.getSource(), XContentType.JSON);
-                request.add(indexRequest);
+                again = true;
+            }
+            if (!again) {
+                return retry.result();
             }
-            doBulkIndex(request);
+            try {
+                Thread.sleep(retry.backoff().millis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SearchException("Interrupted while waiting to retry bulk request", e);
+            }
+        }
+    }
+
+    public void bulkAsync(BulkRequest request, ActionListener<BulkResult> listener) {
+        bulkAsync(new BulkRetry(request, retryPolicy), listener);
+    }
+
+    private void bulkAsync(BulkRetry retry, ActionListener<BulkResult> listener) {
+        esClient.getClient().bulk(retry.pending(), new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                if (retry.onResponse(response)) {
+                    scheduleRetry(retry, listener);
+                } else {
+                    listener.onResponse(retry.result());
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (retry.onFailure(e)) {
+                    scheduleRetry(retry, listener);
+                } else {
+                    listener.onFailure(e);
+                }
+            }
+        });
+    }
+
+    private void scheduleRetry(BulkRetry retry, ActionListener<BulkResult> listener) {
+        esClient.getClient()
+                .threadPool()
+                .schedule(retry.backoff(), ThreadPool.Names.GENERIC, () -> bulkAsync(retry, listener));
+    }
+
+    BulkRequest bulkRequest(Collection<Document> documents) {
+        BulkRequest request = new BulkRequest();
+        for (Document document : documents) {
+            request.add(indexRequest(document));
         }
+        return request;
+    }
+
+    IndexRequest indexRequest(Document document) {
+        IndexRequest request = new IndexRequest(bucket.getIndex(), DEFAULTTYPE);
+        if (document.getId() != null) {
+            request.id(document.getId());
+        }
+        if (document.getVersion() > 0) {
+            request.version(document.getVersion());
+        }
+        return request.source(document.getSourceRef(), document.getContentType());
     }
 
     private IndexRequestBuilder indexRequest(String id, boolean waitRefresh) {
@@ -180,7 +315,7 @@ public class Indexer {
                 indexRequest = indexRequest.setSource(document, XContentType.JSON);
                 request.add(indexRequest);
             }
-            doBulkIndex(request);
+            doBulkIndex(request.request());
         }
     }
 
@@ -192,10 +327,45 @@ public class Indexer {
         return new IndexBatch(this, json(), size);
     }
 
-    private void doBulkIndex(BulkRequestBuilder request) {
-        BulkResponse response = request.execute().actionGet();
-        if (response.hasFailures()) {
-            throw new SearchException("Could not index all documents. Error message is: " + response.buildFailureMessage());
+    /**
+     * A batch that sends bulk requests asynchronously, keeping up to {@code concurrentRequests} of them in flight.
+     * Callers adding documents are blocked only when that limit is reached.
+     */
+    public IndexBatch batch(int size, int concurrentRequests) {
+        return new IndexBatch(this, json(), size, concurrentRequests);
+    }
+
+    /**
+     * Opens (or recovers) a spool in the given directory, which starts draining into this index straight away
+     */
+    public Spool spool(Path directory) {
+        return new Spool(this, directory);
+    }
+
+    /**
+     * A batch that can be shared by many producer threads, buffering their documents in {@code stripes} separately
+     * locked buffers that are merged into full-size bulk requests
+     */
+    public ConcurrentIndexBatch concurrentBatch(int size, int concurrentRequests, int stripes) {
+        return new ConcurrentIndexBatch(this, json(), size, concurrentRequests, stripes);
+    }
+
+    public ConcurrentIndexBatch concurrentBatch(int size, int concurrentRequests) {
+        return concurrentBatch(size, concurrentRequests, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A batch whose size (and number of concurrent requests, if enabled) keeps being adjusted to the observed
+     * bulk latency and rejections
+     */
+    public IndexBatch batch(AdaptiveBatchSize batchSize) {
+        return new IndexBatch(this, json(), batchSize);
+    }
+
+    private void doBulkIndex(BulkRequest request) {
+        BulkResult result = bulk(request);
+        if (result.hasFailures()) {
+            throw new BulkIndexException(result.getFailures());
         }
     }
 
@@ -210,4 +380,15 @@ public class Indexer {
     public DataBucket bucket() {
         return bucket;
     }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy argument cannot be null");
+        }
+        this.retryPolicy = retryPolicy;
+    }
 }
@@ -0,0 +1,140 @@
+package com.wirktop.esutils.index;
+
+import com.wirktop.esutils.Document;
+import com.wirktop.esutils.SearchException;
+import org.elasticsearch.ExceptionsHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Splits a stream into bulk-sized chunks and hands them over to a number of lanes, each with its own worker thread
+ * that serializes the chunk and submits it. When order must be preserved, items are assigned to lanes by id so that
+ * all the writes for an id are sent sequentially, by the same worker.
+ *
+ * @author Cosmin Marginean
+ */
+class ParallelBulk<T> {
+
+    private static final int QUEUED_CHUNKS_PER_LANE = 2;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Indexer indexer;
+    private final Function<T, Document> toDocument;
+    private final Function<T, String> idFunction;
+    private final int parallelism;
+    private final int batchSize;
+    private final boolean preserveOrder;
+    private final List<IndexFailure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    ParallelBulk(Indexer indexer, Function<T, Document> toDocument, Function<T, String> idFunction, int parallelism, int batchSize, boolean preserveOrder) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism argument must be positive");
+        }
+        this.indexer = indexer;
+        this.toDocument = toDocument;
+        this.idFunction = idFunction;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+        this.preserveOrder = preserveOrder;
+    }
+
+    void index(Stream<T> items) {
+        List<Lane> lanes = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            lanes.add(new Lane());
+        }
+        try {
+            int nextLane = 0;
+            Iterator<T> iterator = items.iterator();
+            while (iterator.hasNext()) {
+                T item = iterator.next();
+                String id = preserveOrder ? idFunction.apply(item) : null;
+                Lane lane = id != null
+                        ? lanes.get(Math.floorMod(id.hashCode(), parallelism))
+                        : lanes.get(nextLane);
+                lane.chunk.add(item);
+                if (lane.chunk.size() >= batchSize) {
+                    lane.submit();
+                    if (id == null) {
+                        nextLane = (nextLane + 1) % parallelism;
+                    }
+                }
+            }
+            for (Lane lane : lanes) {
+                if (!lane.chunk.isEmpty()) {
+                    lane.submit();
+                }
+            }
+            for (Lane lane : lanes) {
+                lane.executor.shutdown();
+            }
+            for (Lane lane : lanes) {
+                lane.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while waiting for bulk requests", e);
+        } finally {
+            for (Lane lane : lanes) {
+                lane.executor.shutdownNow();
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new BulkIndexException(new ArrayList<>(failures));
+        }
+    }
+
+    private void bulkIndex(List<T> chunk) {
+        List<Document> documents = new ArrayList<>(chunk.size());
+        for (T item : chunk) {
+            try {
+                documents.add(toDocument.apply(item));
+            } catch (RuntimeException e) {
+                failures.add(new IndexFailure(-1, idFunction.apply(item), null, e.getMessage(), e));
+            }
+        }
+        if (documents.isEmpty()) {
+            return;
+        }
+        try {
+            failures.addAll(indexer.bulk(indexer.bulkRequest(documents)).getFailures());
+        } catch (RuntimeException e) {
+            for (int i = 0; i < documents.size(); i++) {
+                failures.add(new IndexFailure(i, documents.get(i).getId(), ExceptionsHelper.status(e), e.getMessage(), e));
+            }
+        }
+    }
+
+    private class Lane {
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "esutils-parallel-bulk-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        private final Semaphore queued = new Semaphore(QUEUED_CHUNKS_PER_LANE);
+        private List<T> chunk = new ArrayList<>();
+
+        private void submit() throws InterruptedException {
+            List<T> items = chunk;
+            chunk = new ArrayList<>();
+            queued.acquire();
+            executor.execute(() -> {
+                try {
+                    bulkIndex(items);
+                } finally {
+                    queued.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.wirktop.esutils.index;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed bulk items are resubmitted and how long to wait before doing so.
+ * Only rejections (HTTP 429, typically a full write thread pool) are retried; anything else is
+ * considered permanent and reported back to the caller.
+ *
+ * @author Cosmin Marginean
+ */
+public class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(0, TimeValue.timeValueMillis(0), TimeValue.timeValueMillis(0));
+
+    private final int maxRetries;
+    private final TimeValue initialBackoff;
+    private final TimeValue maxBackoff;
+
+    private RetryPolicy(int maxRetries, TimeValue initialBackoff, TimeValue maxBackoff) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries argument cannot be negative");
+        }
+        if (initialBackoff == null || maxBackoff == null) {
+            throw new IllegalArgumentException("backoff arguments cannot be null");
+        }
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * @param maxRetries     How many times a rejected item is resubmitted before it's reported as failed
+     * @param initialBackoff Wait before the first retry, doubled for every subsequent one
+     * @param maxBackoff     Upper bound for the wait between retries
+     */
+    public static RetryPolicy exponentialBackoff(int maxRetries, TimeValue initialBackoff, TimeValue maxBackoff) {
+        return new RetryPolicy(maxRetries, initialBackoff, maxBackoff);
+    }
+
+    public boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS;
+    }
+
+    public boolean isRetryable(Exception e) {
+        return isRetryable(ExceptionsHelper.status(e));
+    }
+
+    /**
+     * Exponential backoff for the given attempt (starting at 0) with jitter, so that many clients
+     * rejected at the same time don't all come back at the same time.
+     */
+    public TimeValue backoff(int attempt) {
+        long max = maxBackoff.millis();
+        long base = Math.min(max, initialBackoff.millis() << Math.min(attempt, 30));
+        if (base <= 1) {
+            return TimeValue.timeValueMillis(base);
+        }
+        long half = base / 2;
+        return TimeValue.timeValueMillis(half + ThreadLocalRandom.current().nextLong(base - half + 1));
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public TimeValue getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public TimeValue getMaxBackoff() {
+        return maxBackoff;
+    }
+}
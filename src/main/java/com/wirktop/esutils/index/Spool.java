@@ -0,0 +1,521 @@
+package com.wirktop.esutils.index;
+
+import com.wirktop.esutils.SearchException;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed buffer for bulk operations: appending is a write to a memory-mapped, append-only segment file, while
+ * a background thread drains the segments into bulk requests at whatever pace the cluster allows. Drained segments
+ * are unmapped and deleted, and segments left over by a previous process (using the same directory) are drained on startup.
+ * <p>
+ * Rejected items and failed requests are retried until they get through, so a slow or unavailable cluster only makes
+ * the spool grow (up to {@link #setMaxBytes(long)}, if set). Items failing for other reasons, and records that can't
+ * be read back, are reported when the spool is closed.
+ * <p>
+ * Record layout: {@code [int length][int crc32][DocWriteRequest bytes]}. The segment header holds the Elasticsearch
+ * version used to serialize the requests and the offset up to which they have been sent.
+ *
+ * @author Cosmin Marginean
+ */
+public class Spool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(Spool.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String SUFFIX = ".spool";
+    private static final int MAGIC = 0x45535350;
+    private static final int VERSION_OFFSET = 4;
+    private static final int DRAINED_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 30000;
+    private static final Consumer<MappedByteBuffer> UNMAPPER = unmapper();
+
+    private final Path directory;
+    private final Indexer indexer;
+    private final int segmentSize;
+    private final int batchSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final List<IndexFailure> failures = Collections.synchronizedList(new ArrayList<>());
+    private final Thread drainer;
+    private Segment current;
+    private long nextSequence;
+    private long maxBytes;
+    private volatile boolean closed;
+
+    protected Spool(Indexer indexer, Path directory) {
+        this(indexer, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param segmentSize Size of a segment file, bytes
+     * @param batchSize   Maximum number of items in a bulk request sent by the drainer
+     */
+    protected Spool(Indexer indexer, Path directory, int segmentSize, int batchSize) {
+        if (segmentSize <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize argument is too small");
+        }
+        this.indexer = indexer;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        recover();
+        drainer = new Thread(this::drain, "esutils-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    public void append(List<DocWriteRequest<?>> requests) {
+        List<byte[]> records = new ArrayList<>(requests.size());
+        for (DocWriteRequest<?> request : requests) {
+            records.add(serialize(request));
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Spool is closed");
+            }
+            for (byte[] record : records) {
+                if (current == null || !current.append(record)) {
+                    awaitSpace(record.length);
+                    current = newSegment(record.length);
+                    segments.addLast(current);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks the producer until the drainer has freed enough segments for a new one to fit under maxBytes
+     */
+    private void awaitSpace(int recordLength) {
+        long needed = segmentCapacity(recordLength);
+        while (maxBytes > 0) {
+            if (current != null && current.isDrained()) {
+                // The full segment isn't deleted by the drainer while it's the current one
+                segments.remove(current);
+                delete(current);
+                current = null;
+            }
+            if (segments.isEmpty() || diskUsage() + needed <= maxBytes) {
+                return;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SearchException("Interrupted while waiting for spool space", e);
+            }
+            if (closed) {
+                throw new IllegalStateException("Spool is closed");
+            }
+        }
+    }
+
+    /**
+     * Size of the segment files currently on disk, bytes
+     */
+    public synchronized long diskUsage() {
+        return segments.stream().mapToLong(segment -> segment.buffer.capacity()).sum();
+    }
+
+    /**
+     * Waits until everything appended so far has been sent to the cluster
+     *
+     * @return false if the timeout elapsed before that
+     */
+    public synchronized boolean awaitDrained(TimeValue timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.nanos();
+        while (!isDrained()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(Math.max(1, remaining / 1000000));
+        }
+        return true;
+    }
+
+    public synchronized boolean isDrained() {
+        return segments.stream().allMatch(Segment::isDrained);
+    }
+
+    /**
+     * Stops the drainer once it's done with the current bulk request, without waiting for the spool to be drained.
+     * Whatever is left in the segments is sent by the next Spool opened on this directory.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while stopping spool drainer", e);
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+                unmap(segment.buffer);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new BulkIndexException(new ArrayList<>(failures));
+        }
+    }
+
+    private void drain() {
+        Segment segment;
+        while ((segment = nextSegment()) != null) {
+            int end = segment.drainedPosition;
+            List<DocWriteRequest<?>> requests = new ArrayList<>();
+            int writePosition = segment.writePosition;
+            while (end < writePosition && requests.size() < batchSize) {
+                int length = segment.buffer.getInt(end);
+                try {
+                    requests.add(segment.read(end + RECORD_HEADER_SIZE, length));
+                } catch (RuntimeException e) {
+                    // Skipped, as it would fail again every time the segment is recovered
+                    log.error("Skipping unreadable record at offset {} in spool segment {}: {}", end, segment.path, e.getMessage());
+                    failures.add(new IndexFailure(end, (DocWriteRequest<?>) null, RestStatus.INTERNAL_SERVER_ERROR, e.getMessage(), e));
+                }
+                end += RECORD_HEADER_SIZE + length;
+            }
+            if (!requests.isEmpty() && !send(requests)) {
+                return;
+            }
+            synchronized (this) {
+                segment.markDrained(end);
+                if (segment.isDrained() && segment != current) {
+                    segments.remove(segment);
+                    delete(segment);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized Segment nextSegment() {
+        while (!closed) {
+            Segment segment = segments.peekFirst();
+            if (segment != null && (!segment.isDrained() || segment != current)) {
+                return segment;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the requests, retrying rejected items and failed requests until done or closed
+     *
+     * @return false if the spool was closed before all the items were sent
+     */
+    private boolean send(List<DocWriteRequest<?>> requests) {
+        long delay = MIN_RETRY_DELAY;
+        List<DocWriteRequest<?>> pending = requests;
+        while (!pending.isEmpty()) {
+            BulkRequest request = new BulkRequest();
+            pending.forEach(request::add);
+            List<DocWriteRequest<?>> retry;
+            try {
+                BulkResult result = indexer.bulk(request);
+                retry = new ArrayList<>();
+                for (IndexFailure failure : result.getFailures()) {
+                    if (failure.getStatus() == RestStatus.TOO_MANY_REQUESTS && failure.getRequest() != null) {
+                        retry.add(failure.getRequest());
+                    } else {
+                        failures.add(failure);
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not send spooled bulk request, retrying in {}ms: {}", delay, e.getMessage());
+                retry = pending;
+            }
+            if (!retry.isEmpty() && !pause(delay)) {
+                return false;
+            }
+            delay = Math.min(MAX_RETRY_DELAY, delay * 2);
+            pending = retry;
+        }
+        return true;
+    }
+
+    private synchronized boolean pause(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining;
+        while (!closed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    private void recover() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                stream.forEach(files::add);
+            }
+            Collections.sort(files);
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+                Segment segment = Segment.open(file);
+                if (segment.isDrained()) {
+                    delete(segment);
+                } else {
+                    log.info("Recovered spool segment {} with {} bytes to send", file, segment.writePosition - segment.drainedPosition);
+                    segments.addLast(segment);
+                }
+            }
+        } catch (IOException e) {
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    private int segmentCapacity(int recordLength) {
+        return Math.max(segmentSize, HEADER_SIZE + RECORD_HEADER_SIZE + recordLength);
+    }
+
+    private Segment newSegment(int recordLength) {
+        Path path = directory.resolve(String.format("%020d%s", nextSequence++, SUFFIX));
+        try {
+            Segment segment = Segment.create(path, segmentCapacity(recordLength));
+            if (current != null) {
+                current.buffer.force();
+            }
+            return segment;
+        } catch (IOException e) {
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Unmaps the segment before deleting its file, which would otherwise keep its disk space (and address space)
+     * until the buffer is garbage collected. The segment must not be used afterwards.
+     */
+    private static void delete(Segment segment) {
+        unmap(segment.buffer);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Could not delete spool segment {}: {}", segment.path, e.getMessage());
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER != null) {
+            try {
+                UNMAPPER.accept(buffer);
+            } catch (RuntimeException e) {
+                log.warn("Could not unmap spool segment: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * There's no public API to unmap a buffer: this uses Unsafe.invokeCleaner() on Java 9+, and the buffer's cleaner
+     * on Java 8. Returns null if neither is available, in which case segments are unmapped when garbage collected.
+     */
+    private static Consumer<MappedByteBuffer> unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not Java 9+
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Spool segments can't be unmapped explicitly: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] serialize(DocWriteRequest<?> request) {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            out.setVersion(Version.CURRENT);
+            DocWriteRequest.writeDocumentRequest(request, out);
+            return BytesReference.toBytes(out.bytes());
+        } catch (IOException e) {
+            throw new SearchException(e.getMessage(), e);
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Limits the size of the segment files on disk. Once reached, {@link #append(List)} blocks until the drainer has
+     * sent (and deleted) enough segments. Zero (the default) means no limit.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        notifyAll();
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final Version version;
+        private volatile int writePosition;
+        private volatile int drainedPosition;
+
+        private Segment(Path path, MappedByteBuffer buffer, Version version) {
+            this.path = path;
+            this.buffer = buffer;
+            this.version = version;
+        }
+
+        private static Segment create(Path path, int capacity) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(VERSION_OFFSET, Version.CURRENT.id);
+            buffer.putLong(DRAINED_OFFSET, HEADER_SIZE);
+            Segment segment = new Segment(path, buffer, Version.CURRENT);
+            segment.writePosition = HEADER_SIZE;
+            segment.drainedPosition = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * Maps an existing segment and finds its end: the first empty or incomplete record
+         */
+        private static Segment open(Path path) throws IOException {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new SearchException("Not a spool segment: " + path);
+            }
+            Segment segment = new Segment(path, buffer, Version.fromId(buffer.getInt(VERSION_OFFSET)));
+            int position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()
+                        || buffer.getInt(position + 4) != checksum(buffer, position + RECORD_HEADER_SIZE, length)) {
+                    break;
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            segment.writePosition = position;
+            segment.drainedPosition = (int) Math.min(position, buffer.getLong(DRAINED_OFFSET));
+            return segment;
+        }
+
+        /**
+         * @return false if the record doesn't fit in this segment
+         */
+        private boolean append(byte[] record) {
+            int position = writePosition;
+            if (position + RECORD_HEADER_SIZE + record.length > buffer.capacity()) {
+                return false;
+            }
+            ByteBuffer target = buffer.duplicate();
+            ((Buffer) target).position(position + RECORD_HEADER_SIZE);
+            target.put(record);
+            buffer.putInt(position + 4, checksum(ByteBuffer.wrap(record), 0, record.length));
+            // Written last, so that a torn record reads as the end of the segment
+            buffer.putInt(position, record.length);
+            writePosition = position + RECORD_HEADER_SIZE + record.length;
+            return true;
+        }
+
+        private DocWriteRequest<?> read(int position, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            ((Buffer) source).position(position);
+            source.get(bytes);
+            try (StreamInput in = StreamInput.wrap(bytes)) {
+                in.setVersion(version);
+                return DocWriteRequest.readDocumentRequest(in);
+            } catch (IOException e) {
+                throw new SearchException(e.getMessage(), e);
+            }
+        }
+
+        private void markDrained(int position) {
+            drainedPosition = position;
+            buffer.putLong(DRAINED_OFFSET, position);
+        }
+
+        private boolean isDrained() {
+            return drainedPosition >= writePosition;
+        }
+
+        private static int checksum(ByteBuffer buffer, int position, int length) {
+            CRC32 crc = new CRC32();
+            ByteBuffer slice = buffer.duplicate();
+            // Through Buffer, as ByteBuffer only overrides these from Java 9
+            ((Buffer) slice).position(position);
+            ((Buffer) slice).limit(position + length);
+            crc.update(slice);
+            return (int) crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.wirktop.esutils.search;
+
+import com.wirktop.esutils.Document;
+import com.wirktop.esutils.SearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Batches the gets by id requested concurrently, from any number of threads, into _mget requests. A batch is sent
+ * once it has maxIds distinct ids, or after the window has passed since its first id was requested, whichever
+ * comes first. Each get returns a future, completed with the document (or null if it doesn't exist) when the
+ * response for its batch arrives, on a transport thread.
+ *
+ * @author Cosmin Marginean
+ */
+public class GetLoader implements AutoCloseable {
+
+    private final Search search;
+    private final int maxIds;
+    private final TimeValue window;
+    private Map<String, List<CompletableFuture<Document>>> pending;
+
+    protected GetLoader(Search search, int maxIds, TimeValue window) {
+        if (maxIds < 1) {
+            throw new IllegalArgumentException("maxIds argument must be positive");
+        }
+        this.search = search;
+        this.maxIds = maxIds;
+        this.window = window;
+    }
+
+    public CompletableFuture<Document> get(String id) {
+        CompletableFuture<Document> future = new CompletableFuture<>();
+        Map<String, List<CompletableFuture<Document>>> full = null;
+        synchronized (this) {
+            if (pending == null) {
+                Map<String, List<CompletableFuture<Document>>> batch = new LinkedHashMap<>();
+                pending = batch;
+                search.esClient()
+                        .getClient()
+                        .threadPool()
+                        .schedule(window, ThreadPool.Names.GENERIC, () -> flush(batch));
+            }
+            pending.computeIfAbsent(id, key -> new ArrayList<>()).add(future);
+            if (pending.size() >= maxIds) {
+                full = pending;
+                pending = null;
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    public <T> CompletableFuture<T> get(String id, Class<T> docClass) {
+        return get(id).thenApply(document -> document != null
+                ? search.esClient().json().toPojo(document.getSourceRef(), docClass)
+                : null);
+    }
+
+    /**
+     * Sends the pending ids now
+     */
+    public void flush() {
+        Map<String, List<CompletableFuture<Document>>> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = null;
+        }
+        if (batch != null) {
+            send(batch);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Sends the batch if it hasn't been sent already, for being full
+     */
+    private void flush(Map<String, List<CompletableFuture<Document>>> batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                return;
+            }
+            pending = null;
+        }
+        send(batch);
+    }
+
+    private void send(Map<String, List<CompletableFuture<Document>>> batch) {
+        search.multiGet(batch.keySet()).execute(new ActionListener<MultiGetResponse>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                for (MultiGetItemResponse item : response.getResponses()) {
+                    List<CompletableFuture<Document>> futures = batch.get(item.getId());
+                    if (item.isFailed()) {
+                        SearchException e = new SearchException("Could not get " + item.getId() + ": " + item.getFailure().getMessage(), item.getFailure().getFailure());
+                        futures.forEach(future -> future.completeExceptionally(e));
+                    } else {
+                        Document document = Search.toDocument(item.getResponse());
+                        futures.forEach(future -> future.complete(document));
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                batch.values().forEach(futures -> futures.forEach(future -> future.completeExceptionally(e)));
+            }
+        });
+    }
+
+    public int getMaxIds() {
+        return maxIds;
+    }
+
+    public TimeValue getWindow() {
+        return window;
+    }
+}
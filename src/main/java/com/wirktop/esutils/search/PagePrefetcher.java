@@ -0,0 +1,144 @@
+package com.wirktop.esutils.search;
+
+import com.wirktop.esutils.SearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Fetches the pages of a result set in order, each request being built from the previous page. Up to a number of
+ * pages are requested in the background ahead of the consumer, so that the next page is (ideally) already there
+ * when the current one has been processed. With zero pages ahead, a page is only requested when it's taken.
+ *
+ * @author Cosmin Marginean
+ */
+class PagePrefetcher {
+
+    private static final Object END = new Object();
+
+    private final Function<SearchResponse, ActionRequestBuilder<?, SearchResponse, ?>> nextRequest;
+    private final int pages;
+    private final Consumer<SearchResponse> discarded;
+    private final Consumer<Exception> failed;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private SearchResponse last;
+    private int buffered;
+    private boolean inFlight;
+    private boolean demand;
+    private boolean done;
+
+    /**
+     * @param first       The first page, already fetched
+     * @param nextRequest Builds the request for the page after the given one, or returns null if it was the last one
+     * @param pages       Number of pages fetched ahead of the consumer
+     */
+    PagePrefetcher(SearchResponse first, Function<SearchResponse, ActionRequestBuilder<?, SearchResponse, ?>> nextRequest, int pages) {
+        this(first, nextRequest, pages, response -> {
+        }, e -> {
+        });
+    }
+
+    /**
+     * @param discarded Called with a page that arrived after {@link #close()}, so it's never returned
+     * @param failed    Called (on a transport thread) when fetching a page fails, before the consumer sees the error
+     */
+    PagePrefetcher(SearchResponse first, Function<SearchResponse, ActionRequestBuilder<?, SearchResponse, ?>> nextRequest, int pages,
+                   Consumer<SearchResponse> discarded, Consumer<Exception> failed) {
+        this.nextRequest = nextRequest;
+        this.pages = pages;
+        this.discarded = discarded;
+        this.failed = failed;
+        this.last = first;
+        fetch();
+    }
+
+    /**
+     * The next page, waiting for it if needed, or null after the last one
+     */
+    SearchResponse take() {
+        synchronized (this) {
+            demand = true;
+        }
+        fetch();
+        Object page;
+        try {
+            page = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while waiting for the next page", e);
+        }
+        if (page == END) {
+            queue.add(END);
+            return null;
+        }
+        if (page instanceof Exception) {
+            queue.add(page);
+            throw new SearchException("Could not fetch the next page: " + ((Exception) page).getMessage(), (Exception) page);
+        }
+        synchronized (this) {
+            demand = false;
+            buffered--;
+        }
+        fetch();
+        return (SearchResponse) page;
+    }
+
+    /**
+     * Stops fetching pages. A request already in flight still completes, but its page is never returned.
+     */
+    synchronized void close() {
+        if (!done) {
+            done = true;
+            queue.add(END);
+        }
+    }
+
+    private synchronized void fetch() {
+        if (inFlight || done || (buffered >= pages && !(demand && buffered == 0))) {
+            return;
+        }
+        ActionRequestBuilder<?, SearchResponse, ?> request = nextRequest.apply(last);
+        if (request == null) {
+            done = true;
+            queue.add(END);
+            return;
+        }
+        inFlight = true;
+        request.execute(new ActionListener<SearchResponse>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                boolean closed;
+                synchronized (PagePrefetcher.this) {
+                    inFlight = false;
+                    // Only close() sets done while a request is in flight
+                    closed = done;
+                    if (!closed) {
+                        last = response;
+                        buffered++;
+                        queue.add(response);
+                    }
+                }
+                if (closed) {
+                    discarded.accept(response);
+                } else {
+                    fetch();
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failed.accept(e);
+                synchronized (PagePrefetcher.this) {
+                    inFlight = false;
+                    done = true;
+                    queue.add(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package com.wirktop.esutils.search;
+
+import org.elasticsearch.index.query.QueryBuilder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps a sample of the most recent distinct queries run through {@link Search}, per bucket, so they can be replayed
+ * to warm up a new index (see {@link com.wirktop.esutils.Warmup}). Registered with
+ * {@link com.wirktop.esutils.ElasticClient#setQuerySampler(QuerySampler)}.
+ *
+ * @author Cosmin Marginean
+ */
+public class QuerySampler {
+
+    private final int capacity;
+    private final double rate;
+    private final Map<String, Deque<QueryBuilder>> samples = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity Number of queries kept for each bucket
+     * @param rate     Fraction (0 to 1) of the queries being sampled
+     */
+    public QuerySampler(int capacity, double rate) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity argument must be positive");
+        }
+        this.capacity = capacity;
+        this.rate = rate;
+    }
+
+    public void sample(String bucket, QueryBuilder query) {
+        if (query == null || ThreadLocalRandom.current().nextDouble() >= rate) {
+            return;
+        }
+        Deque<QueryBuilder> queries = samples.computeIfAbsent(bucket, key -> new ArrayDeque<>(capacity));
+        synchronized (queries) {
+            // A repeated query only moves to the most recent position
+            queries.remove(query);
+            if (queries.size() >= capacity) {
+                queries.removeFirst();
+            }
+            queries.addLast(query);
+        }
+    }
+
+    /**
+     * The sampled queries for a bucket, oldest first
+     */
+    public List<QueryBuilder> queries(String bucket) {
+        Deque<QueryBuilder> queries = samples.get(bucket);
+        if (queries == null) {
+            return Collections.emptyList();
+        }
+        synchronized (queries) {
+            return new ArrayList<>(queries);
+        }
+    }
+
+    public void clear() {
+        samples.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+}
@@ -6,8 +6,15 @@ import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Spliterators;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -21,6 +28,7 @@ public class Scroll {
 
     private final ElasticClient esClient;
     private final DataBucket bucket;
+    private int prefetchPages;
 
     public Scroll(ElasticClient esClient, DataBucket bucket) {
         if (esClient == null) {
@@ -40,7 +48,29 @@ public class Scroll {
     public static Stream<SearchHit> scrollIndex(ElasticClient esClient, String index, int pageSize) {
         SearchRequestBuilder request = esClient.getClient().prepareSearch(index);
         ScrollIterator iterator = new ScrollIterator(esClient, request, null, true, pageSize, DEFAULT_KEEPALIVE);
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false);
+        return stream(iterator);
+    }
+
+    /**
+     * Scrolls one slice of the index, in index order. Scrolling all the slices, concurrently, covers the whole index.
+     *
+     * @param slice  Slice id, between 0 and slices - 1
+     * @param slices Total number of slices, which are best aligned with the number of shards
+     */
+    public static Stream<SearchHit> scrollIndex(ElasticClient esClient, String index, int pageSize, int slice, int slices) {
+        return scrollIndex(esClient, index, null, pageSize, slice, slices);
+    }
+
+    public static Stream<SearchHit> scrollIndex(ElasticClient esClient, String index, QueryBuilder query, int pageSize, int slice, int slices) {
+        SearchRequestBuilder request = esClient.getClient()
+                .prepareSearch(index)
+                .setVersion(true)
+                .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC);
+        if (slices > 1) {
+            request.slice(new SliceBuilder(slice, slices));
+        }
+        ScrollIterator iterator = new ScrollIterator(esClient, request, query, true, pageSize, DEFAULT_KEEPALIVE);
+        return stream(iterator);
     }
 
     public Stream<SearchHit> scroll(QueryBuilder query) {
@@ -48,13 +78,65 @@ public class Scroll {
     }
 
     public Stream<SearchHit> scroll(QueryBuilder query, int pageSize, boolean fetchSource, TimeValue keepAlive) {
-        ScrollIterator iterator = new ScrollIterator(esClient, searchRequest(), query, fetchSource, pageSize, keepAlive);
-        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false);
+        ScrollIterator iterator = new ScrollIterator(esClient, searchRequest(), query, fetchSource, pageSize, keepAlive, prefetchPages);
+        return stream(iterator);
+    }
+
+    /**
+     * A parallel stream over all the hits, scrolled with one sliced scroll per slice. Each split of the stream gets
+     * its own slices, so the slices are scrolled concurrently (on the fork-join pool, as the rest of the stream).
+     *
+     * @param slices Number of slices, which are best aligned with the number of shards
+     */
+    public Stream<SearchHit> parallelScroll(QueryBuilder query, int slices) {
+        return parallelScroll(query, slices, DEFAULT_PAGE_SIZE, true, DEFAULT_KEEPALIVE);
+    }
+
+    public Stream<SearchHit> parallelScroll(QueryBuilder query, int slices, int pageSize, boolean fetchSource, TimeValue keepAlive) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("slices argument must be positive");
+        }
+        List<ScrollIterator> opened = Collections.synchronizedList(new ArrayList<>());
+        IntFunction<ScrollIterator> sliceScroll = slice -> {
+            SearchRequestBuilder request = searchRequest().addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC);
+            if (slices > 1) {
+                request.slice(new SliceBuilder(slice, slices));
+            }
+            ScrollIterator iterator = new ScrollIterator(esClient, request, query, fetchSource, pageSize, keepAlive, prefetchPages);
+            opened.add(iterator);
+            return iterator;
+        };
+        return StreamSupport.stream(new SliceSpliterator(sliceScroll, 0, slices), true)
+                .onClose(() -> {
+                    synchronized (opened) {
+                        opened.forEach(ScrollIterator::close);
+                    }
+                });
+    }
+
+    /**
+     * Closing the stream clears the scroll, if it hasn't been consumed completely
+     */
+    private static Stream<SearchHit> stream(ScrollIterator iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false)
+                .onClose(iterator::close);
     }
 
     public SearchRequestBuilder searchRequest() {
         return esClient.getClient()
-                .prepareSearch(bucket.getIndex())
+                .prepareSearch(bucket.getIndices())
                 .setVersion(true);
     }
+
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Number of pages the scroll streams fetch in the background, ahead of the page being processed. Zero (the default)
+     * means each page is only requested once the previous one has been consumed.
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
 }
@@ -1,31 +1,49 @@
 package com.wirktop.esutils.search;
 
 import com.wirktop.esutils.ElasticClient;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequestBuilder;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
 
 /**
+ * Iterates over all the hits of a scroll. The scroll is cleared as soon as its last page has been fetched, or when
+ * the iterator is closed, or when fetching a page fails, so it only holds resources on the cluster while it's being
+ * consumed. Open scrolls are tracked by the client's {@link ScrollRegistry}.
+ *
  * @author Cosmin Marginean
  */
-public class ScrollIterator implements Iterator<SearchHit> {
+public class ScrollIterator implements Iterator<SearchHit>, AutoCloseable {
 
+    private static final Logger log = LoggerFactory.getLogger(ScrollIterator.class);
 
     private ElasticClient esClient;
-    private String scrollId;
-    private SearchResponse currentResponse;
-    private long currentIndex;
+    private PagePrefetcher pages;
+    private SearchHit[] currentHits;
+    private int currentIndex;
     private long totalHitCount;
-    private int pageSize;
+    private long fetchedHitCount;
     private TimeValue keepAlive;
+    private String scrollId;
+    private boolean cleared;
 
     public ScrollIterator(ElasticClient esClient, SearchRequestBuilder request, QueryBuilder query, boolean fetchSource, int pageSize, TimeValue keepAlive) {
+        this(esClient, request, query, fetchSource, pageSize, keepAlive, 0);
+    }
+
+    /**
+     * @param prefetchPages Number of pages fetched in the background, ahead of the one being iterated
+     */
+    public ScrollIterator(ElasticClient esClient, SearchRequestBuilder request, QueryBuilder query, boolean fetchSource, int pageSize, TimeValue keepAlive, int prefetchPages) {
         this.esClient = esClient;
-        this.pageSize = pageSize;
         this.keepAlive = keepAlive;
 
         request.setScroll(keepAlive)
@@ -36,16 +54,101 @@ public class ScrollIterator implements Iterator<SearchHit> {
         }
         SearchResponse response = request.execute().actionGet();
         totalHitCount = response.getHits().getTotalHits();
-        if (totalHitCount > 0) {
-            currentIndex = 0;
-            scrollId = response.getScrollId();
-            currentResponse = response;
+        currentHits = response.getHits().getHits();
+        scrollId = response.getScrollId();
+        esClient.scrollRegistry().add(scrollId, keepAlive);
+        pages = new PagePrefetcher(response, this::nextRequest, prefetchPages, this::discarded, e -> clearScroll());
+    }
+
+    /**
+     * Called in order, for one page at a time
+     */
+    private SearchScrollRequestBuilder nextRequest(SearchResponse previous) {
+        fetchedHitCount += previous.getHits().getHits().length;
+        updateScrollId(previous.getScrollId());
+        if (previous.getHits().getHits().length == 0 || fetchedHitCount >= totalHitCount) {
+            clearScroll();
+            return null;
+        }
+        return esClient.getClient()
+                .prepareSearchScroll(previous.getScrollId())
+                .setScroll(keepAlive);
+    }
+
+    /**
+     * Also extends the registry's expiry for the scroll, whose keep-alive was just renewed
+     */
+    private synchronized void updateScrollId(String newScrollId) {
+        if (cleared || newScrollId == null) {
+            return;
+        }
+        if (!newScrollId.equals(scrollId)) {
+            esClient.scrollRegistry().remove(scrollId);
+            scrollId = newScrollId;
+        }
+        esClient.scrollRegistry().add(scrollId, keepAlive);
+    }
+
+    /**
+     * A page prefetched after close(), which may carry a scroll id that close() didn't know about
+     */
+    private synchronized void discarded(SearchResponse response) {
+        String lateScrollId = response.getScrollId();
+        if (!cleared) {
+            updateScrollId(lateScrollId);
+        } else if (lateScrollId != null && !lateScrollId.equals(scrollId)) {
+            clear(lateScrollId);
+        }
+    }
+
+    private synchronized void clearScroll() {
+        if (cleared || scrollId == null) {
+            return;
         }
+        cleared = true;
+        esClient.scrollRegistry().remove(scrollId);
+        clear(scrollId);
+    }
+
+    /**
+     * Asynchronous, as this can run on a transport thread, when the last page is prefetched
+     */
+    private void clear(String id) {
+        esClient.getClient()
+                .prepareClearScroll()
+                .addScrollId(id)
+                .execute(new ActionListener<ClearScrollResponse>() {
+                    @Override
+                    public void onResponse(ClearScrollResponse response) {
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        log.warn("Could not clear scroll: " + e.getMessage(), e);
+                    }
+                });
+    }
+
+    /**
+     * Stops fetching pages and clears the scroll, if it hasn't been consumed completely
+     */
+    @Override
+    public void close() {
+        pages.close();
+        clearScroll();
     }
 
     @Override
     public boolean hasNext() {
-        return totalHitCount > 0 && currentIndex < totalHitCount;
+        while (currentIndex >= currentHits.length) {
+            SearchResponse response = pages.take();
+            if (response == null) {
+                return false;
+            }
+            currentHits = response.getHits().getHits();
+            currentIndex = 0;
+        }
+        return true;
     }
 
     @Override
@@ -53,17 +156,6 @@ public class ScrollIterator implements Iterator<SearchHit> {
         if (!hasNext()) {
             throw new IllegalStateException("No next element");
         }
-        long arrayIndex = currentIndex % pageSize;
-        SearchHit hit = currentResponse.getHits().getHits()[(int) arrayIndex];
-        currentIndex++;
-        if (currentIndex % pageSize == 0) {
-            currentResponse = esClient.getClient().prepareSearchScroll(scrollId)
-                    .setScroll(keepAlive)
-                    .execute()
-                    .actionGet();
-            scrollId = currentResponse.getScrollId();
-            totalHitCount = currentResponse.getHits().getTotalHits();
-        }
-        return hit;
+        return currentHits[currentIndex++];
     }
 }
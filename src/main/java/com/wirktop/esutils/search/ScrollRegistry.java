@@ -0,0 +1,83 @@
+package com.wirktop.esutils.search;
+
+import com.wirktop.esutils.ElasticClient;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the scroll contexts opened by this client's {@link ScrollIterator}s and not cleared yet. A scroll is
+ * cleared when its last page has been fetched or when its stream is closed, so the ones left here are usually from
+ * abandoned streams, which would otherwise hold resources on the cluster until their keep-alive expires. Once that
+ * happens, the cluster has freed them anyway, so they're dropped from here too.
+ *
+ * @author Cosmin Marginean
+ */
+public class ScrollRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ScrollRegistry.class);
+
+    private final ElasticClient esClient;
+    // Scroll id -> System.nanoTime() at which its keep-alive expires
+    private final Map<String, Long> scrollIds = new ConcurrentHashMap<>();
+
+    public ScrollRegistry(ElasticClient esClient) {
+        this.esClient = esClient;
+    }
+
+    /**
+     * Registers a scroll id, or extends its expiry when the scroll is used again
+     */
+    void add(String scrollId, TimeValue keepAlive) {
+        removeExpired();
+        scrollIds.put(scrollId, System.nanoTime() + keepAlive.nanos());
+    }
+
+    void remove(String scrollId) {
+        scrollIds.remove(scrollId);
+    }
+
+    public Set<String> getOpenScrollIds() {
+        removeExpired();
+        return Collections.unmodifiableSet(new HashSet<>(scrollIds.keySet()));
+    }
+
+    public int size() {
+        removeExpired();
+        return scrollIds.size();
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        scrollIds.values().removeIf(expiry -> expiry - now < 0);
+    }
+
+    /**
+     * Clears all the open scrolls. Their streams fail if they're still being consumed.
+     *
+     * @return The number of scroll contexts freed on the cluster
+     */
+    public int clearAll() {
+        removeExpired();
+        List<String> ids = new ArrayList<>(scrollIds.keySet());
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        scrollIds.keySet().removeAll(ids);
+        ClearScrollResponse response = esClient.getClient()
+                .prepareClearScroll()
+                .setScrollIds(ids)
+                .get();
+        log.info("Cleared {} scrolls, freeing {} scroll contexts", ids.size(), response.getNumFreed());
+        return response.getNumFreed();
+    }
+}
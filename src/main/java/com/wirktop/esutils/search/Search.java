@@ -3,18 +3,25 @@ package com.wirktop.esutils.search;
 import com.wirktop.esutils.DataBucket;
 import com.wirktop.esutils.Document;
 import com.wirktop.esutils.ElasticClient;
+import com.wirktop.esutils.SearchException;
 import com.wirktop.esutils.index.Indexer;
 import org.elasticsearch.action.explain.ExplainResponse;
 import org.elasticsearch.action.get.GetRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.sort.SortBuilder;
 
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Spliterators;
 import java.util.function.Function;
@@ -26,11 +33,13 @@ import java.util.stream.StreamSupport;
  */
 public class Search {
 
-    public static final Function<SearchHit, Document> HIT_TO_DOC = hit -> new Document(hit.getId(), hit.getVersion(), hit.getSourceAsString());
+    public static final Function<SearchHit, Document> HIT_TO_DOC = hit -> new Document(hit.getId(), hit.getVersion(), hit.getSourceRef());
 
     private final ElasticClient esClient;
     private final DataBucket bucket;
     private final Scroll scroll;
+    private int prefetchPages;
+    private String tiebreaker = SearchAfterIterator.DEFAULT_TIEBREAKER;
 
     public Search(ElasticClient esClient, DataBucket bucket) {
         if (esClient == null) {
@@ -65,15 +74,12 @@ public class Search {
     public <T> T get(String id, Class<T> docClass) {
         GetResponse response = get(id);
         return response.isExists()
-                ? esClient.json().toPojo(response.getSourceAsString(), docClass)
+                ? esClient.json().toPojo(response.getSourceAsBytesRef(), docClass)
                 : null;
     }
 
     public Document getDocument(String id) {
-        GetResponse response = get(id);
-        return response.isExists()
-                ? new Document(id, response.getVersion(), response.getSourceAsString())
-                : null;
+        return toDocument(get(id));
     }
 
     private GetResponse get(String id) {
@@ -82,7 +88,65 @@ public class Search {
         return getRequest.execute().actionGet();
     }
 
+    static Document toDocument(GetResponse response) {
+        return response.isExists()
+                ? new Document(response.getId(), response.getVersion(), response.getSourceAsBytesRef())
+                : null;
+    }
+
+    /**
+     * Gets the documents with a single _mget request. The ids that don't exist are missing from the result, which
+     * is in the order of the ids.
+     * <p>
+     * Like the other gets, this only looks in {@link DataBucket#getIndex()}, rather than all the indices the
+     * bucket searches.
+     */
+    public Map<String, Document> getMany(Collection<String> ids) {
+        Map<String, Document> documents = new LinkedHashMap<>();
+        if (ids.isEmpty()) {
+            return documents;
+        }
+        MultiGetResponse response = multiGet(ids).execute().actionGet();
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                throw new SearchException("Could not get " + item.getId() + ": " + item.getFailure().getMessage(), item.getFailure().getFailure());
+            }
+            Document document = toDocument(item.getResponse());
+            if (document != null) {
+                documents.put(document.getId(), document);
+            }
+        }
+        return documents;
+    }
+
+    public <T> Map<String, T> getMany(Collection<String> ids, Class<T> docClass) {
+        Map<String, T> pojos = new LinkedHashMap<>();
+        getMany(ids).forEach((id, document) -> pojos.put(id, esClient.json().toPojo(document.getSourceRef(), docClass)));
+        return pojos;
+    }
+
+    public Map<String, String> getManyJson(Collection<String> ids) {
+        Map<String, String> docs = new LinkedHashMap<>();
+        getMany(ids).forEach((id, document) -> docs.put(id, document.getSource()));
+        return docs;
+    }
+
+    MultiGetRequestBuilder multiGet(Collection<String> ids) {
+        return esClient.getClient()
+                .prepareMultiGet()
+                .add(bucket.getIndex(), Indexer.DEFAULTTYPE, ids);
+    }
+
+    /**
+     * A loader batching the gets from concurrent callers into _mget requests of up to maxIds ids, each sent at most
+     * window after its first get. The loader can be shared by all the threads using this bucket.
+     */
+    public GetLoader getLoader(int maxIds, TimeValue window) {
+        return new GetLoader(this, maxIds, window);
+    }
+
     public void search(QueryBuilder query, OutputStream outputStream) {
+        sample(query);
         search(searchRequest().setQuery(query), outputStream);
     }
 
@@ -100,6 +164,7 @@ public class Search {
     public long count(QueryBuilder filter) {
         SearchRequestBuilder builder = searchRequest().setSize(0);
         if (filter != null) {
+            sample(filter);
             builder = builder.setPostFilter(filter);
         }
         SearchResponse response = builder.execute().actionGet();
@@ -108,7 +173,7 @@ public class Search {
 
     public SearchRequestBuilder searchRequest() {
         return esClient.getClient()
-                .prepareSearch(bucket.getIndex())
+                .prepareSearch(bucket.getIndices())
                 .setTypes(Indexer.DEFAULTTYPE)
                 .setVersion(true);
     }
@@ -130,12 +195,41 @@ public class Search {
     }
 
     public Stream<SearchHit> search(QueryBuilder query, int pageSize, SortBuilder sort, boolean explain) {
-        SearchIterator iterator = new SearchIterator(this, query, pageSize, sort, explain);
+        sample(query);
+        SearchIterator iterator = new SearchIterator(this, query, pageSize, sort, explain, prefetchPages);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false);
+    }
+
+    /**
+     * All the hits for the query, paged with search_after (see {@link SearchAfterIterator}) and sorted by the
+     * tiebreaker field (see {@link #setTiebreaker(String)})
+     */
+    public Stream<SearchHit> searchAfter(QueryBuilder query) {
+        return searchAfter(query, SearchIterator.DEFAULT_PAGE_SIZE, null, tiebreaker);
+    }
+
+    public Stream<SearchHit> searchAfter(QueryBuilder query, int pageSize, SortBuilder sort) {
+        return searchAfter(query, pageSize, sort, tiebreaker);
+    }
+
+    /**
+     * @param tiebreaker A field with a unique value for every document, sorted on after the sort
+     */
+    public Stream<SearchHit> searchAfter(QueryBuilder query, int pageSize, SortBuilder sort, String tiebreaker) {
+        sample(query);
+        SearchAfterIterator iterator = new SearchAfterIterator(this, query, pageSize, sort, tiebreaker, prefetchPages);
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, 0), false);
     }
 
+    private void sample(QueryBuilder query) {
+        QuerySampler sampler = esClient.getQuerySampler();
+        if (sampler != null) {
+            sampler.sample(bucket.getIndex(), query);
+        }
+    }
+
     public <T> Function<SearchHit, T> hitToPojo(Class<T> pojoClass) {
-        return (hit) -> esClient.json().toPojo(hit.getSourceAsString(), pojoClass);
+        return (hit) -> esClient.json().toPojo(hit.getSourceRef(), pojoClass);
     }
 
     public SearchResponse search(SearchRequestBuilder request) {
@@ -162,6 +256,32 @@ public class Search {
         return esClient.admin().indexExists(bucket.getIndex());
     }
 
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Number of pages the search streams fetch in the background, ahead of the page being processed. Zero (the default)
+     * means each page is only requested once the previous one has been consumed.
+     */
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    public String getTiebreaker() {
+        return tiebreaker;
+    }
+
+    /**
+     * Field completing the sort of {@link #searchAfter(QueryBuilder)}, with a unique value for every document.
+     * Defaults to {@code _id}, which has no doc values: sorting on it loads fielddata for every id of the index on the
+     * heap of each data node. For large indices, a keyword field holding a copy of the id (or any other unique
+     * value) is much cheaper.
+     */
+    public void setTiebreaker(String tiebreaker) {
+        this.tiebreaker = tiebreaker;
+    }
+
     public ExplainResponse explain(String id, QueryBuilder query) {
         return esClient.getClient()
                 .prepareExplain(bucket.getIndex(), Indexer.DEFAULTTYPE, id)
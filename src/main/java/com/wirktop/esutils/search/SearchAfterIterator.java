@@ -0,0 +1,104 @@
+package com.wirktop.esutils.search;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.util.Iterator;
+
+/**
+ * Pages through all the hits of a query with search_after: each page starts after the sort values of the last hit
+ * of the previous one, so every page costs the same and there's no limit on the number of results. Unlike a scroll,
+ * nothing is kept open on the cluster, so the results reflect the index as it is when each page is fetched.
+ * <p>
+ * The sort is completed with a tiebreaker field, which must have a unique value for every document. The default,
+ * {@code _id}, works on any index but has no doc values, so sorting on it builds fielddata for all the ids on the
+ * heap. A unique field with doc values (e.g. a keyword copy of the id) avoids that on large indices.
+ *
+ * @author Cosmin Marginean
+ */
+public class SearchAfterIterator implements Iterator<SearchHit> {
+
+    public static final String DEFAULT_TIEBREAKER = "_id";
+
+    private final Search search;
+    private final QueryBuilder query;
+    private final int pageSize;
+    private final SortBuilder sort;
+    private final String tiebreaker;
+
+    private PagePrefetcher pages;
+    private SearchHit[] currentHits;
+    private int currentIndex;
+
+    protected SearchAfterIterator(Search search, QueryBuilder query, int pageSize, SortBuilder sort, String tiebreaker) {
+        this(search, query, pageSize, sort, tiebreaker, 0);
+    }
+
+    /**
+     * @param prefetchPages Number of pages fetched in the background, ahead of the one being iterated
+     */
+    protected SearchAfterIterator(Search search, QueryBuilder query, int pageSize, SortBuilder sort, String tiebreaker, int prefetchPages) {
+        if (tiebreaker == null) {
+            throw new IllegalArgumentException("tiebreaker argument cannot be null");
+        }
+        this.search = search;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.sort = sort;
+        this.tiebreaker = tiebreaker;
+
+        SearchResponse response = request(null).execute().actionGet();
+        currentHits = response.getHits().getHits();
+        pages = new PagePrefetcher(response, this::nextRequest, prefetchPages);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (currentIndex >= currentHits.length) {
+            SearchResponse response = pages.take();
+            if (response == null) {
+                return false;
+            }
+            currentHits = response.getHits().getHits();
+            currentIndex = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("No next element");
+        }
+        return currentHits[currentIndex++];
+    }
+
+    private SearchRequestBuilder nextRequest(SearchResponse previous) {
+        SearchHit[] hits = previous.getHits().getHits();
+        // A partial page is the last one
+        if (hits.length < pageSize) {
+            return null;
+        }
+        return request(hits[hits.length - 1].getSortValues());
+    }
+
+    private SearchRequestBuilder request(Object[] searchAfter) {
+        SearchRequestBuilder request = search.searchRequest()
+                .setQuery(query)
+                .setSize(pageSize)
+                .setTrackTotalHits(false);
+        if (sort != null) {
+            request.addSort(sort);
+        }
+        request.addSort(SortBuilders.fieldSort(tiebreaker).order(SortOrder.ASC));
+        if (searchAfter != null) {
+            request.searchAfter(searchAfter);
+        }
+        return request;
+    }
+}
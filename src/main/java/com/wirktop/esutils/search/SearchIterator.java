@@ -22,57 +22,77 @@ public class SearchIterator implements Iterator<SearchHit> {
     private SortBuilder sort;
     private boolean explain;
 
-    private SearchResponse currentResponse;
+    private PagePrefetcher pages;
+    private SearchHit[] currentHits;
     private int currentIndex;
     private long totalHitCount;
+    private int nextFrom;
 
     protected SearchIterator(Search search, QueryBuilder query, int pageSize, boolean explain) {
         this(search, query, pageSize, null, explain);
     }
 
     protected SearchIterator(Search search, QueryBuilder query, int pageSize, SortBuilder sort, boolean explain) {
+        this(search, query, pageSize, sort, explain, 0);
+    }
+
+    /**
+     * @param prefetchPages Number of pages fetched in the background, ahead of the one being iterated
+     */
+    protected SearchIterator(Search search, QueryBuilder query, int pageSize, SortBuilder sort, boolean explain, int prefetchPages) {
         this.search = search;
         this.query = query;
         this.pageSize = pageSize;
         this.sort = sort;
         this.explain = explain;
 
-        currentIndex = 0;
-        doRequest();
-        if (totalHitCount > 0) {
-            currentIndex = 0;
-        }
+        SearchResponse response = request(0).execute().actionGet();
+        totalHitCount = response.getHits().getTotalHits();
+        currentHits = response.getHits().getHits();
+        pages = new PagePrefetcher(response, this::nextRequest, prefetchPages);
     }
 
-    @Override
-    public SearchHit next() {
-        if (!hasNext()) {
-            throw new IllegalStateException("No next element");
-        }
-        long arrayIndex = currentIndex % pageSize;
-        SearchHit hit = currentResponse.getHits().getHits()[(int) arrayIndex];
-        currentIndex++;
-        if (currentIndex % pageSize == 0 && currentIndex < MAX_RESULTS) {
-            doRequest();
+    /**
+     * Called in order, for one page at a time
+     */
+    private SearchRequestBuilder nextRequest(SearchResponse previous) {
+        nextFrom += pageSize;
+        if (previous.getHits().getHits().length < pageSize || nextFrom >= Math.min(totalHitCount, MAX_RESULTS)) {
+            return null;
         }
-        return hit;
+        return request(nextFrom);
     }
 
-    private void doRequest() {
+    private SearchRequestBuilder request(int from) {
         SearchRequestBuilder request = search.searchRequest();
         request.setQuery(query);
-        request.setFrom(currentIndex);
-        request.setSize(pageSize);
+        request.setFrom(from);
+        request.setSize(Math.min(pageSize, MAX_RESULTS - from));
         request.setExplain(explain);
         if (sort != null) {
             request.addSort(sort);
         }
-        currentResponse = request.execute().actionGet();
-        totalHitCount = currentResponse.getHits().getTotalHits();
+        return request;
+    }
+
+    @Override
+    public SearchHit next() {
+        if (!hasNext()) {
+            throw new IllegalStateException("No next element");
+        }
+        return currentHits[currentIndex++];
     }
 
     @Override
     public boolean hasNext() {
-        return totalHitCount > 0 && currentIndex < totalHitCount && currentIndex < MAX_RESULTS;
+        while (currentIndex >= currentHits.length) {
+            SearchResponse response = pages.take();
+            if (response == null) {
+                return false;
+            }
+            currentHits = response.getHits().getHits();
+            currentIndex = 0;
+        }
+        return true;
     }
 }
@@ -0,0 +1,66 @@
+package com.wirktop.esutils.search;
+
+import org.elasticsearch.search.SearchHit;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Covers a range of the slices of a sliced scroll. Splitting hands half of the slices to the new spliterator, so a
+ * parallel stream ends up with (up to) one spliterator per slice, each scrolling its own slice. A spliterator can't
+ * be split anymore once it has started scrolling.
+ *
+ * @author Cosmin Marginean
+ */
+class SliceSpliterator implements Spliterator<SearchHit> {
+
+    private final IntFunction<ScrollIterator> sliceScroll;
+    private int slice;
+    private int end;
+    private ScrollIterator current;
+
+    /**
+     * @param sliceScroll Opens the scroll for a slice id
+     * @param slice       First slice (inclusive)
+     * @param end         Last slice (exclusive)
+     */
+    SliceSpliterator(IntFunction<ScrollIterator> sliceScroll, int slice, int end) {
+        this.sliceScroll = sliceScroll;
+        this.slice = slice;
+        this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super SearchHit> action) {
+        while (current == null || !current.hasNext()) {
+            if (slice >= end) {
+                return false;
+            }
+            current = sliceScroll.apply(slice++);
+        }
+        action.accept(current.next());
+        return true;
+    }
+
+    @Override
+    public Spliterator<SearchHit> trySplit() {
+        if (current != null || end - slice < 2) {
+            return null;
+        }
+        int middle = slice + (end - slice) / 2;
+        SliceSpliterator prefix = new SliceSpliterator(sliceScroll, slice, middle);
+        slice = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+}
@@ -5,14 +5,18 @@ import com.wirktop.esutils.search.Search;
 import org.apache.commons.io.IOUtils;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesRequest;
 import org.elasticsearch.action.admin.indices.template.get.GetIndexTemplatesResponse;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -194,6 +198,99 @@ public class AdminTest extends TestBase {
         Assert.assertEquals(319, client.search(new DataBucket(cloneIndex)).count());
     }
 
+    @Test
+    public void testCopyIndexSliced() throws Exception {
+        ElasticClient client = new ElasticClient(client());
+        Admin admin = client.admin();
+
+        int count = 1013;
+        List<Document> docs = generateDocuments(count, false)
+                .stream()
+                .map((docStr) -> new Document(UUID.randomUUID().toString(), docStr))
+                .collect(Collectors.toList());
+
+        String index = "index-test-copy-sliced";
+        admin.createIndex(index, 4);
+        client.indexer(new DataBucket(index)).bulkIndex(docs);
+        waitForIndexedDocs(index, count);
+
+        String cloneIndex = "index-test-copy-sliced-clone";
+        AtomicLong progress = new AtomicLong();
+        DataCopy copy = admin.dataCopy(index, cloneIndex);
+        copy.setBatchSize(50);
+        copy.setMaxInFlight(2);
+        copy.setMaxDocsPerSecond(5000);
+        copy.setCopyListener((copied, total) -> progress.accumulateAndGet(copied, Math::max));
+        Assert.assertEquals(count, copy.copy());
+        Assert.assertEquals(count, progress.get());
+        waitForIndexedDocs(cloneIndex, count);
+        Assert.assertEquals(count, client.search(new DataBucket(cloneIndex)).count());
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        ElasticClient client = new ElasticClient(client());
+        Admin admin = client.admin();
+        admin.setMetadataCacheTtl(TimeValue.timeValueMinutes(1));
+        String index = "index-metadata-cache";
+        String alias = "alias-metadata-cache";
+
+        Assert.assertFalse(admin.indexExists(index));
+        admin.createIndex(index);
+        Assert.assertTrue(admin.indexExists(index));
+        Assert.assertFalse(admin.aliasExists(alias));
+        admin.createAlias(alias, index);
+        Assert.assertTrue(admin.aliasExists(alias));
+        Assert.assertFalse(admin.indexExists(alias));
+        Assert.assertEquals(Collections.singletonList(index), admin.indicesForAlias(alias));
+
+        admin.removeIndex(index);
+        Assert.assertFalse(admin.indexExists(index));
+        Assert.assertFalse(admin.aliasExists(alias));
+    }
+
+    @Test
+    public void testRollingBucket() throws Exception {
+        ElasticClient client = new ElasticClient(client());
+        Admin admin = client.admin();
+        RollingBucket bucket = new RollingBucket("events", RollingBucket.Period.DAILY);
+        bucket.setMaxDocs(1);
+        bucket.createIndex(admin, 2);
+        String first = bucket.currentIndex(admin);
+        Assert.assertTrue(first.matches("events-\\d{4}\\.\\d{2}\\.\\d{2}-000001"));
+        Assert.assertFalse(bucket.rollover(admin));
+
+        client.indexer(bucket).indexJson("{\"name\": \"one\"}");
+        admin.refresh(first);
+        long beforeRollover = System.currentTimeMillis();
+        Assert.assertTrue(bucket.rollover(admin));
+        String second = bucket.currentIndex(admin);
+        Assert.assertNotEquals(first, second);
+        Assert.assertTrue(second.endsWith("-000002"));
+        Assert.assertEquals(2, admin.getShards(second));
+
+        client.indexer(bucket).indexJson("{\"name\": \"two\"}");
+        admin.refresh(second);
+        // Sharing the name prefix, but not part of the bucket
+        String other = "events-archive";
+        admin.createIndex(other);
+        client.indexer(new DataBucket(other)).indexJson("{\"name\": \"archived\"}");
+        admin.refresh(other);
+        Assert.assertEquals(2, client.search(bucket).count());
+        Assert.assertEquals(Arrays.asList(first, second), admin.indicesForAlias(bucket.getSearchAlias()).stream().sorted().collect(Collectors.toList()));
+        Assert.assertArrayEquals(new String[]{first, second},
+                bucket.searchBucket(admin, 0, System.currentTimeMillis()).getIndices());
+        Assert.assertArrayEquals(new String[]{second},
+                bucket.searchBucket(admin, System.currentTimeMillis() + 60000, Long.MAX_VALUE).getIndices());
+        Assert.assertArrayEquals(new String[]{first},
+                bucket.searchBucket(admin, 0, beforeRollover - 60000).getIndices());
+
+        bucket.setRetention(TimeValue.timeValueMillis(0));
+        Assert.assertEquals(Collections.singletonList(first), bucket.applyRetention(admin));
+        Assert.assertFalse(admin.indexExists(first));
+        Assert.assertEquals(1, client.search(bucket).count());
+    }
+
     public static final class MyBucket extends DataBucket {
 
         public MyBucket(String index) {
@@ -1,13 +1,26 @@
 package com.wirktop.esutils;
 
+import com.wirktop.esutils.index.IndexBatch;
 import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.search.QuerySampler;
 import com.wirktop.esutils.search.Search;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Cosmin Marginean
@@ -67,6 +80,210 @@ public class AliasWrappedBucketTest extends TestBase {
         Assert.assertEquals(267, search.count());
     }
 
+    @Test
+    public void testRefreshBulkLoad() throws Exception {
+        ElasticClient client = esClient();
+        String indexBaseName = "aliaswrappedrefreshbulkload";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setBulkLoad(true);
+        Admin admin = client.admin();
+        bucket.createIndex(admin);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        indexStructuredDocs(267, indexer);
+        waitForIndexedDocs(indexBaseName, 267);
+        int replicas = admin.getReplicas(bucket.actualIndex(admin));
+        bucket.refresh(admin);
+        Assert.assertEquals(267, search.count());
+        assertBulkLoadFinished(admin, bucket.actualIndex(admin), replicas);
+
+        // Same settings for an index loaded by the caller, checked while the data is being loaded
+        DataBucket newIndex = bucket.createNewIndex(admin);
+        Settings loadSettings = admin.getSettings(newIndex.getIndex());
+        Assert.assertEquals("-1", loadSettings.get(Admin.INDEX_REFRESH_INTERVAL));
+        Assert.assertEquals("0", loadSettings.get(Admin.INDEX_NUMBER_OF_REPLICAS));
+        Assert.assertEquals("async", loadSettings.get(Admin.INDEX_TRANSLOG_DURABILITY));
+        indexStructuredDocs(100, client.indexer(newIndex));
+        bucket.wrap(admin, newIndex, true);
+        Assert.assertEquals(100, search.count());
+        assertBulkLoadFinished(admin, newIndex.getIndex(), replicas);
+    }
+
+    private static void assertBulkLoadFinished(Admin admin, String index, int replicas) {
+        Settings settings = admin.getSettings(index);
+        Assert.assertNull(settings.get(Admin.INDEX_REFRESH_INTERVAL));
+        Assert.assertNull(settings.get(Admin.INDEX_TRANSLOG_DURABILITY));
+        Assert.assertEquals(replicas, admin.getReplicas(index));
+    }
+
+    @Test
+    public void testRefreshForceMerge() throws Exception {
+        ElasticClient client = esClient();
+        String indexBaseName = "aliaswrappedrefreshforcemerge";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setBulkLoad(true);
+        bucket.setForceMergeSegments(1);
+        Admin admin = client.admin();
+        bucket.createIndex(admin);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        indexStructuredDocs(267, indexer);
+        waitForIndexedDocs(indexBaseName, 267);
+        bucket.refresh(admin);
+        String index = bucket.actualIndex(admin);
+        Assert.assertEquals(267, search.count());
+        Assert.assertTrue(admin.getSegmentStats(index).getCount() <= admin.getShards(index));
+    }
+
+    @Test
+    public void testRefreshWarmup() throws Exception {
+        ElasticClient client = esClient();
+        QuerySampler sampler = new QuerySampler(10, 1.0);
+        client.setQuerySampler(sampler);
+        String indexBaseName = "aliaswrappedrefreshwarmup";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setWarmupSampler(sampler);
+        Admin admin = client.admin();
+        bucket.createIndex(admin);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        indexStructuredDocs(267, indexer);
+        waitForIndexedDocs(indexBaseName, 267);
+        QueryBuilder query = QueryBuilders.rangeQuery("age").gte(30);
+        long count = search.count(query);
+        search.count(query);
+        Assert.assertEquals(Collections.singletonList(query), sampler.queries(indexBaseName));
+        Assert.assertTrue(admin.warmup(bucket.actualIndex(admin), sampler.queries(indexBaseName)) >= 2);
+
+        bucket.refresh(admin);
+        Assert.assertEquals(267, search.count());
+        Assert.assertEquals(count, search.count(query));
+    }
+
+    @Test
+    public void testReshard() throws Exception {
+        ElasticClient client = esClient();
+        String indexBaseName = "aliaswrappedreshard";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setRoutingShards(8);
+        Admin admin = client.admin();
+        bucket.createIndex(admin, 2);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        indexStructuredDocs(267, indexer);
+        waitForIndexedDocs(indexBaseName, 267);
+        String index = bucket.actualIndex(admin);
+        Assert.assertFalse(bucket.reshard(admin, 2));
+        for (int shards : new int[]{3, 16}) {
+            try {
+                bucket.reshard(admin, shards);
+                Assert.fail("Resharding to " + shards + " should fail");
+            } catch (IllegalArgumentException e) {
+                Assert.assertEquals(index, bucket.actualIndex(admin));
+                Assert.assertNull(admin.getSettings(index).get(Admin.INDEX_BLOCKS_WRITE));
+            }
+        }
+
+        Assert.assertTrue(bucket.reshard(admin, 4));
+        Assert.assertNotEquals(index, bucket.actualIndex(admin));
+        Assert.assertFalse(admin.indexExists(index));
+        Assert.assertEquals(4, admin.getShards(bucket.actualIndex(admin)));
+        Assert.assertEquals(267, search.count());
+
+        Assert.assertTrue(bucket.reshard(admin, 1));
+        Assert.assertEquals(1, admin.getShards(bucket.actualIndex(admin)));
+        Assert.assertEquals(267, search.count());
+        indexer.indexJson(null, "{\"name\": \"after\"}", true);
+        Assert.assertEquals(268, search.count());
+    }
+
+    @Test
+    public void testRefreshReindex() throws Exception {
+        ElasticClient client = esClient();
+        String indexBaseName = "aliaswrappedrefreshreindex";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setReindex(true);
+        Admin admin = client.admin();
+        bucket.createIndex(admin);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        indexStructuredDocs(267, indexer);
+        waitForIndexedDocs(indexBaseName, 267);
+        String oldIndex = bucket.actualIndex(admin);
+        bucket.refresh(admin);
+        Assert.assertNotEquals(oldIndex, bucket.actualIndex(admin));
+        waitForIndexedDocs(indexBaseName, 267);
+        Assert.assertEquals(267, search.count());
+    }
+
+    @Test
+    public void testRefreshDelta() throws Exception {
+        ElasticClient client = esClient();
+        String indexBaseName = "aliaswrappedrefreshdelta";
+        AliasWrappedBucket bucket = new AliasWrappedBucket(indexBaseName);
+        bucket.setDeltaField("updated");
+        Admin admin = client.admin();
+        bucket.createIndex(admin);
+
+        Search search = client.search(bucket);
+        Indexer indexer = client.indexer(bucket);
+        long created = System.currentTimeMillis();
+        try (IndexBatch batch = indexer.batch()) {
+            for (int i = 0; i < 267; i++) {
+                batch.add(UUID.randomUUID().toString(), new JSONObject().put("name", "doc" + i).put("updated", created).toString());
+            }
+        }
+        waitForIndexedDocs(indexBaseName, 267);
+
+        List<String> lateIds = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Written once the first pass has started. The listener runs on a transport thread, so it only signals.
+            CountDownLatch copying = new CountDownLatch(1);
+            bucket.setCopyListener((copied, total) -> copying.countDown());
+            Future<?> duringCopy = executor.submit(() -> {
+                copying.await();
+                lateIds.addAll(writeDocs(indexer, "copy", 5, created + 1000));
+                return null;
+            });
+            // Written from the warmup step, after the first catch-up pass, so only the last one can pick them up
+            bucket.setWarmupSampler(new QuerySampler(1, 0) {
+                @Override
+                public List<QueryBuilder> queries(String bucketName) {
+                    try {
+                        duringCopy.get();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    lateIds.addAll(writeDocs(indexer, "warmup", 5, created + 2000));
+                    return Collections.emptyList();
+                }
+            });
+            bucket.refresh(admin);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(10, lateIds.size());
+        Assert.assertEquals(277, search.count());
+        for (String id : lateIds) {
+            Assert.assertNotNull(search.getMap(id));
+        }
+    }
+
+    private static List<String> writeDocs(Indexer indexer, String name, int count, long updated) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String json = new JSONObject().put("name", name + i).put("updated", updated).toString();
+            ids.add(indexer.indexJson(null, json, true));
+        }
+        return ids;
+    }
+
     @Test
     public void testCustom() throws Exception {
         ElasticClient client = esClient();
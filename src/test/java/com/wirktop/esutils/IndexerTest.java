@@ -1,21 +1,38 @@
 package com.wirktop.esutils;
 
+import com.wirktop.esutils.index.AdaptiveBatchSize;
+import com.wirktop.esutils.index.BulkIndexException;
 import com.wirktop.esutils.index.IndexBatch;
+import com.wirktop.esutils.index.IndexFailure;
 import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.index.RetryPolicy;
+import com.wirktop.esutils.index.Spool;
 import com.wirktop.esutils.search.Search;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.rest.RestStatus;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * @author Cosmin Marginean
@@ -40,6 +57,18 @@ public class IndexerTest extends TestBase {
         Assert.assertEquals(search.getJson("345345"), doc);
     }
 
+    @Test
+    public void testIndexDocumentBytes() throws Exception {
+        Search search = search("indextestindexdocumentbytes");
+        Indexer indexer = indexer("indextestindexdocumentbytes");
+        String doc = randomDoc();
+        indexer.indexDocument(new Document("b123", new BytesArray(doc)), true);
+        Document stored = search.getDocument("b123");
+        Assert.assertEquals(doc, stored.getSource());
+        Assert.assertEquals(doc, stored.getSourceRef().utf8ToString());
+        Assert.assertEquals(new JSONObject(doc).getString("id"), esClient().json().toPojo(stored.getSourceRef(), Map.class).get("id"));
+    }
+
     @Test
     public void testIndexPojo() throws Exception {
         Search search = search("index1");
@@ -155,6 +184,30 @@ public class IndexerTest extends TestBase {
         });
     }
 
+    @Test
+    public void testBulkPartialFailure() throws Exception {
+        String index = "index-bulk-partial-failure";
+        Indexer indexer = indexer(index);
+        indexer.setRetryPolicy(RetryPolicy.exponentialBackoff(3, TimeValue.timeValueMillis(10), TimeValue.timeValueMillis(100)));
+        indexer.indexJson(null, randomDoc(), true);
+        List<Document> documents = generateDocuments(20, true)
+                .stream()
+                .map((docStr) -> new Document(UUID.randomUUID().toString(), docStr))
+                .collect(Collectors.toList());
+        try {
+            indexer.bulkIndex(documents);
+            Assert.fail("Expected a BulkIndexException");
+        } catch (BulkIndexException e) {
+            Assert.assertEquals(1, e.getFailures().size());
+            IndexFailure failure = e.getFailures().get(0);
+            Assert.assertEquals(20, failure.getPosition());
+            Assert.assertEquals(documents.get(20).getId(), failure.getId());
+            Assert.assertEquals(RestStatus.BAD_REQUEST, failure.getStatus());
+        }
+        SearchResponse response = waitForIndexedDocs(index, 21);
+        Assert.assertEquals(21, response.getHits().getTotalHits());
+    }
+
     @Test
     public void testBatchIndex() throws Exception {
         String index = "batchindex";
@@ -183,6 +236,214 @@ public class IndexerTest extends TestBase {
         Assert.assertEquals(response.getHits().getTotalHits(), 100);
     }
 
+    @Test
+    public void testBatchIndexAsync() throws Exception {
+        String index = "batchindexasync";
+        Indexer indexer = indexerTcp(index);
+        try (IndexBatch batch = indexer.batch(7, 3)) {
+            for (int i = 0; i < 50; i++) {
+                batch.add(UUID.randomUUID().toString(), randomDoc());
+                batch.addPojo(UUID.randomUUID().toString(), new JSONObject(randomDoc()).toMap());
+            }
+        }
+        SearchResponse response = waitForIndexedDocs(index, 100);
+        Assert.assertEquals(response.getHits().getTotalHits(), 100);
+    }
+
+    @Test
+    public void testBatchMixedOperations() throws Exception {
+        String index = "batchmixedoperations";
+        Indexer indexer = indexerTcp(index);
+        Search search = searchTcp(index);
+        String json = super.docAsJson("pojo1.json").toString();
+        try (IndexBatch batch = indexer.batch(4)) {
+            batch.add("toupdate", json);
+            batch.add("todelete", json);
+            batch.add("toscript", json);
+            batch.updateField("toupdate", "age", 83);
+            batch.delete("todelete");
+            batch.upsert("upserted", json);
+            batch.updateScript("toscript", "ctx._source.name = ctx._source.name + \" \" + params.appendValue;",
+                    Collections.singletonMap("appendValue", "edited"));
+        }
+        Assert.assertEquals(83, search.get("toupdate", TestPojo.class).getAge());
+        Assert.assertNull(search.get("todelete", TestPojo.class));
+        Assert.assertEquals(92, search.get("upserted", TestPojo.class).getAge());
+        Assert.assertEquals("John Smith edited", search.get("toscript", TestPojo.class).getName());
+    }
+
+    @Test
+    public void testBatchCoalesce() throws Exception {
+        String index = "batchcoalesce";
+        Indexer indexer = indexerTcp(index);
+        Search search = searchTcp(index);
+        String json = super.docAsJson("pojo1.json").toString();
+        IndexBatch batch = indexer.batch(100);
+        batch.setCoalesce(true);
+        batch.add("doc1", json);
+        for (int i = 0; i < 10; i++) {
+            batch.updateField("doc1", "age", i);
+        }
+        batch.add("doc2", json);
+        batch.delete("doc2");
+        batch.upsert("doc3", json);
+        batch.updateField("doc3", "name", "Jane Smith");
+        batch.close();
+
+        Assert.assertEquals(12, batch.getCoalescedWrites());
+        Assert.assertEquals(9, search.get("doc1", TestPojo.class).getAge());
+        Assert.assertNull(search.get("doc2", TestPojo.class));
+        Assert.assertEquals(92, search.get("doc3", TestPojo.class).getAge());
+        Assert.assertEquals("Jane Smith", search.get("doc3", TestPojo.class).getName());
+    }
+
+    @Test
+    public void testBatchCoalesceVersioned() throws Exception {
+        String index = "batchcoalesceversioned";
+        Indexer indexer = indexerTcp(index);
+        Search search = searchTcp(index);
+        String json = super.docAsJson("pojo1.json").toString();
+        indexer.indexDocument(new Document("doc1", json), true);
+        indexer.indexDocument(new Document("doc2", json), true);
+        IndexBatch batch = indexer.batch(100);
+        batch.setCoalesce(true);
+        batch.delete("doc1", 1);
+        batch.add("doc1", json);
+        batch.add(new Document("doc2", 1, json));
+        batch.updateField("doc2", "age", 50);
+        batch.close();
+
+        // Both writes were sent for each id: the unversioned ones didn't replace the versioned ones
+        Assert.assertEquals(0, batch.getCoalescedWrites());
+        Assert.assertEquals(3, search.getDocument("doc1").getVersion());
+        Assert.assertEquals(3, search.getDocument("doc2").getVersion());
+        Assert.assertEquals(50, search.get("doc2", TestPojo.class).getAge());
+    }
+
+    @Test
+    public void testConcurrentBatch() throws Exception {
+        String index = "concurrentbatch";
+        Indexer indexer = indexerTcp(index);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (IndexBatch batch = indexer.concurrentBatch(50, 2, 4)) {
+            for (int t = 0; t < 8; t++) {
+                executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        batch.add(UUID.randomUUID().toString(), randomDoc());
+                    }
+                    return null;
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        SearchResponse response = waitForIndexedDocs(index, 800);
+        Assert.assertEquals(response.getHits().getTotalHits(), 800);
+    }
+
+    @Test
+    public void testBatchSpool() throws Exception {
+        String index = "batchspool";
+        Indexer indexer = indexerTcp(index);
+        Path directory = Files.createTempDirectory("esutils-spool");
+        try (Spool spool = indexer.spool(directory)) {
+            try (IndexBatch batch = indexer.batch(10)) {
+                batch.setSpool(spool);
+                for (int i = 0; i < 95; i++) {
+                    batch.add(UUID.randomUUID().toString(), randomDoc());
+                }
+            }
+            Assert.assertTrue(spool.awaitDrained(TimeValue.timeValueSeconds(30)));
+        }
+        SearchResponse response = waitForIndexedDocs(index, 95);
+        Assert.assertEquals(response.getHits().getTotalHits(), 95);
+    }
+
+    @Test
+    public void testBatchIndexFlushTriggers() throws Exception {
+        String index = "batchindexflushtriggers";
+        Indexer indexer = indexerTcp(index);
+        try (IndexBatch batch = indexer.batch(1000)) {
+            batch.setMaxBytes(randomDoc().length() * 10);
+            for (int i = 0; i < 25; i++) {
+                batch.add(UUID.randomUUID().toString(), randomDoc());
+            }
+            waitForIndexedDocs(index, 20);
+
+            batch.setFlushInterval(TimeValue.timeValueMillis(200));
+            for (int i = 0; i < 5; i++) {
+                batch.add(UUID.randomUUID().toString(), randomDoc());
+            }
+            SearchResponse response = waitForIndexedDocs(index, 30);
+            Assert.assertEquals(response.getHits().getTotalHits(), 30);
+        }
+    }
+
+    @Test
+    public void testSourceLengthUtf8() throws Exception {
+        String source = "{\"name\": \"\u00e9\u20ac\ud83d\ude00\"}";
+        Assert.assertEquals(source.getBytes(StandardCharsets.UTF_8).length, new Document("1", source).sourceLength());
+    }
+
+    @Test
+    public void testBatchIndexAdaptive() throws Exception {
+        String index = "batchindexadaptive";
+        Indexer indexer = indexerTcp(index);
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(TimeValue.timeValueSeconds(2), 5, 500, 4);
+        try (IndexBatch batch = indexer.batch(batchSize)) {
+            for (int i = 0; i < 2000; i++) {
+                batch.add(UUID.randomUUID().toString(), randomDoc());
+            }
+        }
+        SearchResponse response = waitForIndexedDocs(index, 2000);
+        Assert.assertEquals(response.getHits().getTotalHits(), 2000);
+        Assert.assertTrue(batchSize.batchSize() > 5);
+        Assert.assertTrue(batchSize.concurrentRequests() >= 1);
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() throws Exception {
+        AdaptiveBatchSize batchSize = new AdaptiveBatchSize(TimeValue.timeValueMillis(100), 10, 1000, 0);
+        for (int i = 0; i < 20; i++) {
+            batchSize.onBulk(batchSize.batchSize(), TimeValue.timeValueMillis(10).nanos(), 0);
+        }
+        int grown = batchSize.batchSize();
+        Assert.assertTrue(grown > 10);
+        batchSize.onBulk(grown, TimeValue.timeValueMillis(10).nanos(), 3);
+        Assert.assertTrue(batchSize.batchSize() < grown);
+        Assert.assertEquals(0, batchSize.concurrentRequests());
+    }
+
+    @Test
+    public void testBulkIndexStream() throws Exception {
+        String index = "bulkindexstream";
+        Indexer indexer = indexerTcp(index);
+        List<String> documents = generateDocuments(1000, false);
+        indexer.bulkIndex(documents.stream().map((doc) -> new Document(UUID.randomUUID().toString(), doc)), 4);
+        SearchResponse response = waitForIndexedDocs(index, 1000);
+        Assert.assertEquals(response.getHits().getTotalHits(), 1000);
+    }
+
+    @Test
+    public void testBulkIndexObjectsPreserveOrder() throws Exception {
+        String index = "bulkindexobjectsorder";
+        Indexer indexer = indexerTcp(index);
+        Search search = searchTcp(index);
+        Stream<TestPojo> pojos = IntStream.range(0, 2000)
+                .mapToObj((i) -> {
+                    TestPojo pojo = new TestPojo();
+                    pojo.setId("pojo" + (i % 50));
+                    pojo.setName("John Smith");
+                    pojo.setAge(i);
+                    return pojo;
+                });
+        indexer.bulkIndexObjects(pojos, TestPojo::getId, 8, true);
+        waitForIndexedDocs(index, 50);
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(1950 + i, search.get("pojo" + i, TestPojo.class).getAge());
+        }
+    }
+
     @Test
     public void testUpdateField() throws Exception {
         Indexer indexer = indexerTcp("testupdatefield");
@@ -2,15 +2,32 @@ package com.wirktop.esutils;
 
 import com.wirktop.esutils.index.IndexBatch;
 import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.search.Scroll;
+import com.wirktop.esutils.search.ScrollRegistry;
 import com.wirktop.esutils.search.Search;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Cosmin Marginean
@@ -63,4 +80,85 @@ public class ScrollTest extends TestBase {
             Assert.assertTrue(doc.getVersion() > 0);
         }
     }
+
+    @Test
+    public void testScrollPrefetch() throws Exception {
+        String index = "test-scroll-prefetch";
+        Indexer indexer = indexer(index);
+        Search search = search(index);
+        int docCount = 1267;
+        indexStructuredDocs(docCount, indexer);
+        waitForIndexedDocs(index, docCount);
+        Scroll scroll = search.scroll();
+        scroll.setPrefetchPages(3);
+        List<SearchHit> hits = scroll.scroll(QueryBuilders.matchAllQuery(), 50, true, Scroll.DEFAULT_KEEPALIVE)
+                .collect(Collectors.toList());
+        Assert.assertEquals(docCount, hits.size());
+        Assert.assertEquals(docCount, hits.stream().map(SearchHit::getId).distinct().count());
+
+        search.setPrefetchPages(2);
+        Assert.assertEquals(docCount, search.search(QueryBuilders.matchAllQuery(), 100).count());
+        Assert.assertEquals(docCount, search.searchAfter(QueryBuilders.matchAllQuery(), 100, null).count());
+    }
+
+    @Test
+    public void testParallelScroll() throws Exception {
+        String index = "test-scroll-parallel";
+        Indexer indexer = indexer(index);
+        Search search = search(index);
+        int docCount = 1267;
+        indexStructuredDocs(docCount, indexer);
+        waitForIndexedDocs(index, docCount);
+        // Records the slice of every sliced search sent, i.e. every slice scroll opened
+        Set<Integer> slices = ConcurrentHashMap.newKeySet();
+        AtomicInteger sliceScrolls = new AtomicInteger();
+        Client client = new FilterClient(client()) {
+            @Override
+            protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                    Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+                if (request instanceof SearchRequest) {
+                    SearchSourceBuilder source = ((SearchRequest) request).source();
+                    if (source != null && source.slice() != null) {
+                        slices.add(source.slice().getId());
+                        sliceScrolls.incrementAndGet();
+                    }
+                }
+                super.doExecute(action, request, listener);
+            }
+        };
+        Scroll scroll = new ElasticClient(client).scroll(new DataBucket(index));
+        List<String> ids = scroll.parallelScroll(QueryBuilders.matchAllQuery(), 4)
+                .map(SearchHit::getId)
+                .collect(Collectors.toList());
+        Assert.assertEquals(docCount, ids.size());
+        Assert.assertEquals(docCount, new HashSet<>(ids).size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3)), slices);
+        Assert.assertEquals(4, sliceScrolls.get());
+        Assert.assertEquals(docCount, search.scroll().parallelScroll(QueryBuilders.matchAllQuery(), 1).count());
+    }
+
+    @Test
+    public void testScrollLifecycle() throws Exception {
+        String index = "test-scroll-lifecycle";
+        indexStructuredDocs(267, indexer(index));
+        waitForIndexedDocs(index, 267);
+        ElasticClient client = new ElasticClient(client());
+        ScrollRegistry registry = client.scrollRegistry();
+        Scroll scroll = client.scroll(new DataBucket(index));
+
+        Assert.assertEquals(267, scroll.scroll(QueryBuilders.matchAllQuery()).count());
+        Assert.assertEquals(0, registry.size());
+
+        try (Stream<SearchHit> stream = scroll.scroll(QueryBuilders.matchAllQuery())) {
+            Assert.assertEquals(5, stream.limit(5).count());
+            Assert.assertEquals(1, registry.size());
+        }
+        Assert.assertEquals(0, registry.size());
+
+        scroll.scroll(QueryBuilders.matchAllQuery()).limit(5).count();
+        scroll.scroll(QueryBuilders.matchAllQuery()).limit(5).count();
+        Assert.assertEquals(2, registry.getOpenScrollIds().size());
+        Assert.assertTrue(registry.clearAll() > 0);
+        Assert.assertEquals(0, registry.size());
+    }
 }
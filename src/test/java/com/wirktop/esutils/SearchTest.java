@@ -4,13 +4,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.wirktop.esutils.index.IndexBatch;
 import com.wirktop.esutils.index.Indexer;
+import com.wirktop.esutils.search.GetLoader;
 import com.wirktop.esutils.search.Scroll;
 import com.wirktop.esutils.search.Search;
 import com.wirktop.esutils.search.SearchIterator;
 import org.elasticsearch.action.explain.ExplainResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.MatchQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
@@ -19,6 +24,7 @@ import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -95,6 +101,36 @@ public class SearchTest extends TestBase {
         Assert.assertTrue(responseDoc.getVersion() > 0);
     }
 
+    @Test
+    public void testGetMany() throws Exception {
+        String index = "test-get-many";
+        Indexer indexer = indexer(index);
+        Search search = search(index);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(indexer.indexJson(null, String.format("{\"name\": \"name%s\", \"age\": %s}", i, i), true));
+        }
+        List<String> requested = new ArrayList<>(ids.subList(5, 15));
+        requested.add("missing");
+        Map<String, Document> documents = search.getMany(requested);
+        Assert.assertEquals(ids.subList(5, 15), new ArrayList<>(documents.keySet()));
+        Assert.assertEquals(search.getJson(ids.get(7)), documents.get(ids.get(7)).getSource());
+        Assert.assertEquals(5, search.getMany(ids, Person.class).get(ids.get(5)).getAge());
+        Assert.assertTrue(search.getMany(Collections.emptyList()).isEmpty());
+
+        try (GetLoader loader = search.getLoader(8, TimeValue.timeValueMillis(20))) {
+            List<CompletableFuture<Document>> futures = ids.parallelStream()
+                    .map(loader::get)
+                    .collect(Collectors.toList());
+            CompletableFuture<Document> missing = loader.get("missing");
+            for (int i = 0; i < ids.size(); i++) {
+                Assert.assertEquals(ids.get(i), futures.get(i).get().getId());
+            }
+            Assert.assertNull(missing.get());
+            Assert.assertEquals(3, loader.get(ids.get(3), Person.class).get().getAge());
+        }
+    }
+
     @Test
     public void testSearchPojo() throws Exception {
         String index = "test-search-pojo";
@@ -220,6 +256,24 @@ public class SearchTest extends TestBase {
         Assert.assertEquals(SearchIterator.MAX_RESULTS, count[0]);
     }
 
+    @Test
+    public void testSearchAfter() throws Exception {
+        int docCount = 12000;
+        String index = "test-search-after";
+        Search search = search(index);
+        Indexer indexer = indexer(index);
+        indexStructuredDocs(docCount, indexer);
+        waitForIndexedDocs(index, docCount);
+        List<SearchHit> hits = search.searchAfter(QueryBuilders.matchAllQuery(), 500, SortBuilders.fieldSort("age").order(SortOrder.DESC))
+                .collect(Collectors.toList());
+        Assert.assertEquals(docCount, hits.size());
+        Assert.assertEquals(docCount, hits.stream().map(SearchHit::getId).distinct().count());
+        for (int i = 1; i < hits.size(); i++) {
+            Assert.assertTrue((int) hits.get(i - 1).getSourceAsMap().get("age") >= (int) hits.get(i).getSourceAsMap().get("age"));
+        }
+        Assert.assertEquals(docCount / 2, search.searchAfter(QueryBuilders.matchAllQuery()).limit(docCount / 2).count());
+    }
+
     @Test
     public void testStreamLimit2() throws Exception {
         int docCount = 4597;
@@ -356,6 +410,35 @@ public class SearchTest extends TestBase {
         Assert.assertEquals(time.toString(), new JSONObject(search2.getJson(newId)).getString("time"));
     }
 
+    @Test
+    public void testBinaryContentType() throws Exception {
+        for (XContentType contentType : Arrays.asList(XContentType.SMILE, XContentType.CBOR)) {
+            ElasticClient client = new ElasticClient(client());
+            client.setContentType(contentType);
+            String index = "test-binary-content-type-" + contentType.shortName();
+            Search search = client.search(new DataBucket(index));
+            Indexer indexer = client.indexer(new DataBucket(index));
+            TestPojo document = docAsPojo("pojo1.json", TestPojo.class);
+            String id = indexer.indexObject(null, document, true);
+            try (IndexBatch batch = indexer.batch()) {
+                for (int i = 0; i < 9; i++) {
+                    batch.addPojo(UUID.randomUUID().toString(), document);
+                }
+            }
+            waitForIndexedDocs(index, 10);
+
+            assertSamePojo1(search, document, id);
+            Assert.assertEquals(contentType, search.getDocument(id).getContentType());
+            assertSame(new JSONObject(pojoToString(document)), new JSONObject(search.getJson(id)));
+            assertSame(new JSONObject(pojoToString(document)), new JSONObject(search.getDocument(id).getSource()));
+            List<TestPojo> pojos = search.search(QueryBuilders.matchAllQuery())
+                    .map(search.hitToPojo(TestPojo.class))
+                    .collect(Collectors.toList());
+            Assert.assertEquals(10, pojos.size());
+            pojos.forEach((pojo) -> Assert.assertEquals(document, pojo));
+        }
+    }
+
     public static final class PojoSerialize {
         private Instant time = Instant.now();
 
@@ -0,0 +1,113 @@
+package com.wirktop.esutils.index;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Runs {@link BulkRetry} against stubbed bulk responses, without a cluster
+ *
+ * @author Cosmin Marginean
+ */
+public class BulkRetryTest {
+
+    private static final String INDEX = "bulkretry";
+
+    @Test
+    public void testOnlyRejectedItemsAreRetried() throws Exception {
+        BulkRetry retry = new BulkRetry(request("a", "b", "c", "d"), policy(2));
+
+        // b and d are rejected, c fails for good
+        Assert.assertTrue(retry.onResponse(response(ok(0, "a"), rejected(1, "b"), badRequest(2, "c"), rejected(3, "d"))));
+        Assert.assertEquals(Arrays.asList("b", "d"), ids(retry.pending()));
+
+        Assert.assertTrue(retry.onResponse(response(ok(0, "b"), rejected(1, "d"))));
+        Assert.assertEquals(Arrays.asList("d"), ids(retry.pending()));
+
+        Assert.assertFalse(retry.onResponse(response(ok(0, "d"))));
+        BulkResult result = retry.result();
+        Assert.assertEquals(4, result.getItems());
+        Assert.assertEquals(3, result.getRetriedItems());
+        Assert.assertEquals(1, result.getFailures().size());
+        // Reported against its position in the original request
+        Assert.assertEquals(2, result.getFailures().get(0).getPosition());
+        Assert.assertEquals(RestStatus.BAD_REQUEST, result.getFailures().get(0).getStatus());
+    }
+
+    @Test
+    public void testRetriesAreCapped() throws Exception {
+        BulkRetry retry = new BulkRetry(request("a", "b"), policy(2));
+        Assert.assertTrue(retry.onResponse(response(rejected(0, "a"), ok(1, "b"))));
+        Assert.assertTrue(retry.onResponse(response(rejected(0, "a"))));
+        Assert.assertFalse(retry.onResponse(response(rejected(0, "a"))));
+
+        BulkResult result = retry.result();
+        Assert.assertEquals(2, result.getRetriedItems());
+        Assert.assertEquals(1, result.getFailures().size());
+        Assert.assertEquals(0, result.getFailures().get(0).getPosition());
+        Assert.assertEquals(RestStatus.TOO_MANY_REQUESTS, result.getFailures().get(0).getStatus());
+    }
+
+    @Test
+    public void testRejectedRequestIsCapped() throws Exception {
+        BulkRetry retry = new BulkRetry(request("a", "b"), policy(1));
+        Assert.assertTrue(retry.onFailure(new EsRejectedExecutionException("rejected")));
+        Assert.assertFalse(retry.onFailure(new EsRejectedExecutionException("rejected")));
+        Assert.assertEquals(2, retry.result().getRetriedItems());
+
+        Assert.assertFalse(new BulkRetry(request("a"), policy(3)).onFailure(new MapperParsingException("bad")));
+        Assert.assertFalse(new BulkRetry(request("a"), RetryPolicy.NONE).onResponse(response(rejected(0, "a"))));
+    }
+
+    private static RetryPolicy policy(int maxRetries) {
+        return RetryPolicy.exponentialBackoff(maxRetries, TimeValue.timeValueMillis(1), TimeValue.timeValueMillis(10));
+    }
+
+    private static BulkRequest request(String... ids) {
+        BulkRequest request = new BulkRequest();
+        for (String id : ids) {
+            request.add(new IndexRequest(INDEX, Indexer.DEFAULTTYPE, id).source("{}", XContentType.JSON));
+        }
+        return request;
+    }
+
+    private static List<String> ids(BulkRequest request) {
+        return request.requests().stream().map(DocWriteRequest::id).collect(Collectors.toList());
+    }
+
+    private static BulkResponse response(BulkItemResponse... items) {
+        return new BulkResponse(items, 1);
+    }
+
+    private static BulkItemResponse ok(int item, String id) {
+        IndexResponse response = new IndexResponse(new ShardId(INDEX, "uuid", 0), Indexer.DEFAULTTYPE, id, 1, 1, 1, true);
+        return new BulkItemResponse(item, DocWriteRequest.OpType.INDEX, response);
+    }
+
+    private static BulkItemResponse rejected(int item, String id) {
+        return failed(item, id, new EsRejectedExecutionException("rejected"));
+    }
+
+    private static BulkItemResponse badRequest(int item, String id) {
+        return failed(item, id, new MapperParsingException("bad"));
+    }
+
+    private static BulkItemResponse failed(int item, String id, Exception cause) {
+        return new BulkItemResponse(item, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure(INDEX, Indexer.DEFAULTTYPE, id, cause));
+    }
+}